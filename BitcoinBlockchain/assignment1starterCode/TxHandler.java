@@ -1,17 +1,41 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class TxHandler {
     private UTXOPool pLedger;
+    // verify all input signatures of a batch up front on the fork-join pool
+    private boolean parallelVerify;
+
+    // result of checking one input signature before the accounting pass
+    private static class SigCheck {
+        PublicKey key;
+        boolean valid;
+
+        private SigCheck(PublicKey key){
+            this.key = key;
+        }
+    }
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
-        // IMPLEMENT THIS
-        this.pLedger = new UTXOPool(utxoPool);
+        this(utxoPool, false);
     }
 
+    /**
+     * Same as {@link #TxHandler(UTXOPool)}, but if {@code parallelVerify} is set then
+     * {@link #handleTxs} verifies every input signature of the batch concurrently before
+     * running the usual sequential UTXO accounting. Accepted transactions are identical.
+     */
+    public TxHandler(UTXOPool utxoPool, boolean parallelVerify) {
+        this.pLedger = new UTXOPool(utxoPool);
+        this.parallelVerify = parallelVerify;
+    }
 
     /**
      * @return true if:
@@ -24,7 +48,11 @@ public class TxHandler {
      */
     
     public boolean isValidTx(Transaction tx) {
-        // IMPLEMENT THIS
+        return this.isValidTx(tx, null);
+    }
+
+    // sigs holds the pre-verified signature results for tx's inputs, or null
+    private boolean isValidTx(Transaction tx, SigCheck[] sigs) {
         ArrayList<Transaction.Output> outputs = tx.getOutputs();
         ArrayList<Transaction.Input> inputs = tx.getInputs();
         
@@ -44,8 +72,13 @@ public class TxHandler {
                 return false;
             
             // if the input signature does not match the input data (in index) and the intended address
-            // reject
-            if (!Crypto.verifySignature(this.pLedger.getTxOutput(curTrans).address, 
+            // reject. only trust a pre-verified result if it was checked against the same key
+            PublicKey address = this.pLedger.getTxOutput(curTrans).address;
+            if (sigs != null && sigs[i] != null && sigs[i].key == address){
+                if (!sigs[i].valid)
+                    return false;
+            }
+            else if (!Crypto.verifySignature(address, 
                 tx.getRawDataToSign(i), inputs.get(i).signature)){
                 return false;
             }
@@ -83,11 +116,12 @@ public class TxHandler {
         // old transaction minus the amount this transaction is using
         // if another new transaction refers to this old transaction
         // then subtract its value in this map from the old transaction
+        SigCheck[][] sigs = this.parallelVerify ? this.verifySignatures(possibleTxs) : null;
         int n = possibleTxs.length;
         for (int i=0; i < n; i++){
             ArrayList<Transaction.Input> input = possibleTxs[i].getInputs();
             boolean valid = true;
-            if (this.isValidTx(possibleTxs[i])) {
+            if (this.isValidTx(possibleTxs[i], sigs == null ? null : sigs[i])) {
                 // for each input, get the UTXO 
                 for (Transaction.Input tmp : possibleTxs[i].getInputs() ){
                     UTXO prevTrans = new UTXO( tmp.prevTxHash, tmp.outputIndex );
@@ -136,5 +170,49 @@ public class TxHandler {
         return output;
 
     }
-    
+
+    /**
+     * Verifies the input signatures of every transaction in {@code txs} concurrently. The key
+     * for an input is looked up in the current pool, or among the outputs of the batch itself
+     * for in-block chains. Inputs whose key can't be resolved are left null and get checked
+     * serially by {@link #isValidTx}.
+     */
+    private SigCheck[][] verifySignatures(Transaction[] txs) {
+        // outputs created inside this batch, by tx hash
+        HashMap<ByteBuffer, Transaction> batch = new HashMap<ByteBuffer, Transaction>();
+        for (Transaction tx : txs)
+            if (tx.getHash() != null)
+                batch.put(ByteBuffer.wrap(tx.getHash()), tx);
+
+        SigCheck[][] sigs = new SigCheck[txs.length][];
+        ArrayList<int[]> jobs = new ArrayList<int[]>();
+        for (int i = 0; i < txs.length; i++){
+            ArrayList<Transaction.Input> inputs = txs[i].getInputs();
+            sigs[i] = new SigCheck[inputs.size()];
+            for (int j = 0; j < inputs.size(); j++){
+                Transaction.Input in = inputs.get(j);
+                if (in.prevTxHash == null || in.signature == null)
+                    continue;
+                Transaction.Output prev = this.pLedger.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+                if (prev == null){
+                    Transaction parent = batch.get(ByteBuffer.wrap(in.prevTxHash));
+                    if (parent != null && in.outputIndex >= 0)
+                        prev = parent.getOutput(in.outputIndex);
+                }
+                if (prev == null)
+                    continue;
+                sigs[i][j] = new SigCheck(prev.address);
+                jobs.add(new int[]{i, j});
+            }
+        }
+
+        // each job writes only its own slot, so no extra synchronization is needed
+        IntStream.range(0, jobs.size()).parallel().forEach(k -> {
+            int i = jobs.get(k)[0];
+            int j = jobs.get(k)[1];
+            Transaction.Input in = txs[i].getInput(j);
+            sigs[i][j].valid = Crypto.verifySignature(sigs[i][j].key, txs[i].getRawDataToSign(j), in.signature);
+        });
+        return sigs;
+    }
 }
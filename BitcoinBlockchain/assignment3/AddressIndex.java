@@ -0,0 +1,72 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * A secondary index of a UTXO pool from each address (public key) to the UTXOs paying it, so
+ * finding what one address owns costs O(outputs owned) instead of a scan of the whole pool.
+ * {@link UTXOPool#setAddressIndex} keeps one in step with a pool.
+ *
+ * Both levels are {@link PersistentHashMap}s, so copying the index along with a pool is O(1)
+ * and the copies share everything except the addresses changed afterwards.
+ */
+public class AddressIndex {
+
+    private PersistentHashMap<PublicKey, PersistentHashMap<UTXO, Transaction.Output>> byAddress;
+
+    /** Creates an empty index */
+    public AddressIndex() {
+        this.byAddress = PersistentHashMap.empty();
+    }
+
+    /** Creates a copy of {@code other} that changes independently of it */
+    public AddressIndex(AddressIndex other) {
+        this.byAddress = other.byAddress;
+    }
+
+    /** Adds {@code utxo}, paying {@code txOut}, under the output's address */
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        if (txOut.address == null)
+            return;
+        PersistentHashMap<UTXO, Transaction.Output> owned = this.byAddress.get(txOut.address);
+        if (owned == null)
+            owned = PersistentHashMap.empty();
+        this.byAddress = this.byAddress.plus(txOut.address, owned.plus(utxo, txOut));
+    }
+
+    /** Removes {@code utxo}, which paid {@code txOut} */
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        if (txOut.address == null)
+            return;
+        PersistentHashMap<UTXO, Transaction.Output> owned = this.byAddress.get(txOut.address);
+        if (owned == null)
+            return;
+        owned = owned.minus(utxo);
+        this.byAddress = owned.size() == 0 ? this.byAddress.minus(txOut.address) : this.byAddress.plus(txOut.address, owned);
+    }
+
+    /** @return the number of addresses that own at least one UTXO */
+    public int size() {
+        return this.byAddress.size();
+    }
+
+    /** @return the number of UTXOs paying {@code address} */
+    public int count(PublicKey address) {
+        PersistentHashMap<UTXO, Transaction.Output> owned = this.byAddress.get(address);
+        return owned == null ? 0 : owned.size();
+    }
+
+    /** Calls {@code action} with every UTXO paying {@code address} and its output */
+    public void forEach(PublicKey address, BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        PersistentHashMap<UTXO, Transaction.Output> owned = this.byAddress.get(address);
+        if (owned != null)
+            owned.forEach(action);
+    }
+
+    /** @return the UTXOs paying {@code address} */
+    public ArrayList<UTXO> getUTXOs(PublicKey address) {
+        ArrayList<UTXO> utxos = new ArrayList<UTXO>(count(address));
+        forEach(address, (ut, txOut) -> utxos.add(ut));
+        return utxos;
+    }
+}
@@ -1,5 +1,9 @@
 import java.util.*;
-import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.stream.IntStream;
 
 // Block Chain should maintain only limited block nodes to satisfy the functions
 // You should not have all the blocks added to the block chain in memory 
@@ -7,68 +11,166 @@ import java.nio.ByteBuffer;
 
 public class BlockChain {
     public static final int  CUT_OFF_AGE = 10;
-
-    private class QueuePair{
-        ByteBuffer blockHash;
-        Integer curCnt;
-
-        private QueuePair(ByteBuffer blockHash, Integer curCnt){
-            this.blockHash = blockHash;
-            this.curCnt = curCnt;
-        }
-    }
+    // how many blocks addBlocksPipelined verifies ahead of the one being committed
+    public static final int  PIPELINE_DEPTH = 4;
 
     private class BlockClass{
         Block block;
         Integer height;
-        ByteBuffer hash;
+        Hash hash;
+        // null for the genesis block
+        Hash parent;
+        // number of retained blocks built directly on this one
+        int children;
+        // serialized size, for the retained bytes gauge
+        long bytes;
+        // UTXOPool commitment after this block
+        byte[] commitment;
+        // the block's transactions that were applied, to evict from or return to the pool
+        Transaction[] accepted = new Transaction[0];
 
-        private BlockClass(Block blockHash, Integer curCnt, ByteBuffer hash){
+        private BlockClass(Block blockHash, Integer curCnt, Hash hash){
             this.block = blockHash;
             this.height = curCnt;
             this.hash = hash;
+            this.parent = blockHash.getPrevBlockHash() == null ? null : Hash.of(blockHash.getPrevBlockHash());
+            this.bytes = TxEncoder.rawBlockSize(blockHash) + TxEncoder.rawTxSize(blockHash.getCoinbase());
         }
     }
-    // for knowing which node is the oldest/which to remove next
-    Queue<QueuePair> chainAge;
+    // retained block hashes by height, for pruning the oldest ones
+    TreeMap<Integer, ArrayList<Hash>> heightIndex;
+    // serialized size of all retained blocks
+    long retainedBlockBytes;
     // the actual blockchain
-    HashMap<ByteBuffer, BlockClass> curChain;
+    HashMap<Hash, BlockClass> curChain;
     /* for knowing which nodes on the chain are the front most node(s)
        using a map because there may be more than one front node since
        we allow forking in the tree 
     */
-    HashMap<ByteBuffer, UTXOPool> edgeBlocks;
+    HashMap<Hash, UTXOPool> edgeBlocks;
+    // if set, blocks keep only their UTXO deltas here instead of a pool in edgeBlocks
+    UndoLogUTXOState undoLog;
+    // blocks that arrived before their parent
+    OrphanPool orphans;
+    // if set, every block added records the commitment to its UTXOPool
+    boolean commitments;
+    // every added block is appended here, if set
+    BlockStore blockStore;
     TransactionPool tPool;
-    // centralized time
-    int nodeAge = 0;
     // current front most node
     BlockClass highestNode;
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      *
-     * @chainAge Queue to keep track of age of each hash, Hashmap to store the actual nodes
-     * Using ByteBuffer to not have to deal with strage hashing issues of byte[]
+     * @heightIndex block hashes by height, to find the ones old enough to prune
+     * Using Hash to not have to deal with strage hashing issues of byte[]
      * to keep track of the top of the chain/tree
      * @edgeBlocks Should maintain a map of block hashes to UTXOPools
      * @curChain inmem storage of blockchain
      */
     public BlockChain(Block genesisBlock) {
-        this.curChain = new HashMap<ByteBuffer, BlockClass>();
-        this.chainAge = new LinkedList<QueuePair>();
-        this.edgeBlocks = new HashMap<ByteBuffer, UTXOPool>();
-        this.nodeAge+=1;
+        // persistent store so that every block's pool shares structure with its parent's
+        this(genesisBlock, new PersistentUTXOStore(), false);
+    }
+
+    /**
+     * create a block chain whose genesis pool is kept in the (empty) {@code store}. If
+     * {@code undoLog} is set, only one live pool following the max height block is kept and
+     * every other block just stores its {@link UTXODelta}
+     */
+    public BlockChain(Block genesisBlock, UTXOStore store, boolean undoLog) {
+        this(genesisBlock, store, undoLog, null);
+    }
+
+    /**
+     * Same as {@link #BlockChain(Block, UTXOStore, boolean)}, but every block added is also
+     * appended to {@code blockStore}. If the store already holds a chain starting at
+     * {@code genesisBlock}, its blocks are replayed first: their applied transactions were
+     * validated when they were stored, so only the UTXO changes are redone, and pruning leaves
+     * the same retained window as before the restart. That still takes time linear in the whole
+     * stored chain, since every block's changes are redone from genesis; {@link #reopen} starts
+     * from a store that kept the UTXO set instead.
+     */
+    public BlockChain(Block genesisBlock, UTXOStore store, boolean undoLog, BlockStore blockStore) {
+        boolean fresh = blockStore == null || blockStore.size() == 0;
+        if (!fresh && !blockStore.contains(genesisBlock.getHash()))
+            throw new IllegalArgumentException("block store holds a different chain");
+        // before addGenUTXO, which adds the coinbase to the block's transactions
+        if (blockStore != null && fresh)
+            this.store(blockStore, genesisBlock, new int[0]);
+        UTXOPool newPool = new UTXOPool(store);
+        newPool = this.addGenUTXO( newPool, genesisBlock );
+        this.init(genesisBlock, newPool, undoLog);
+        if (!fresh){
+            try {
+                blockStore.replay((block, applied) -> {
+                    int height = this.admissibleHeight(block);
+                    if (height >= 0){
+                        this.commit(this.reapply(block, applied), height);
+                        this.flushLive();
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        // set last so replayed blocks aren't appended again
+        this.blockStore = blockStore;
+    }
+
+    private BlockChain() {
+    }
+
+    /**
+     * create a block chain that starts at the trusted {@code checkpoint} block instead of genesis,
+     * with the UTXOPool after it loaded from {@code snapshot} (see {@link UTXOSnapshot}) into
+     * {@code store}. The checkpoint plays the part of the genesis block: nothing below it is
+     * known, and its transactions are assumed to be in the snapshot already. {@code snapshotHash}
+     * is the trusted content hash of the snapshot, as returned by {@link #writeUTXOSnapshot}; a
+     * snapshot with any other contents is rejected.
+     */
+    public static BlockChain fromSnapshot(Block checkpoint, File snapshot, byte[] snapshotHash, UTXOStore store, boolean undoLog) throws IOException {
+        UTXOSnapshot loaded = UTXOSnapshot.load(snapshot, snapshotHash, store);
+        if (!Arrays.equals(loaded.getBlockHash(), checkpoint.getHash()))
+            throw new IllegalArgumentException("snapshot is not for the checkpoint block");
+        BlockChain chain = new BlockChain();
+        chain.init(checkpoint, loaded.getUTXOPool(), undoLog);
+        return chain;
+    }
+
+    /**
+     * reopen a chain on a {@code store} that still holds the UTXOPool after {@code checkpoint},
+     * such as a {@link DiskUTXOStore} opened on the file of an earlier chain whose max height
+     * block was {@code checkpoint}. The store's {@link UTXOStore#getLabel label}, which the chain
+     * writes at every flush, has to be the checkpoint's hash. As with {@link #fromSnapshot}, the
+     * checkpoint plays the part of the genesis block.
+     */
+    public static BlockChain reopen(Block checkpoint, UTXOStore store, boolean undoLog) {
+        if (!Arrays.equals(store.getLabel(), checkpoint.getHash()))
+            throw new IllegalArgumentException("store does not hold the state after the checkpoint block");
+        BlockChain chain = new BlockChain();
+        chain.init(checkpoint, new UTXOPool(store), undoLog);
+        return chain;
+    }
+
+    // sets up a chain holding just root, with rootPool as the state after it
+    private void init(Block root, UTXOPool rootPool, boolean undoLog){
+        this.curChain = new HashMap<Hash, BlockClass>();
+        this.heightIndex = new TreeMap<Integer, ArrayList<Hash>>();
+        this.edgeBlocks = new HashMap<Hash, UTXOPool>();
+        this.orphans = new OrphanPool();
         this.tPool = new TransactionPool();
-        ByteBuffer hash = ByteBuffer.wrap(genesisBlock.getHash());
-        QueuePair key = new QueuePair( hash, this.nodeAge);
-        this.chainAge.add(key);
+        Hash hash = Hash.of(root.getHash());
         // store block/height
-        BlockClass gen = new BlockClass(genesisBlock, 1, hash);
-        this.curChain.put(hash, gen);
-        UTXOPool newPool = new UTXOPool();
-        newPool = this.addGenUTXO( newPool, genesisBlock );
+        BlockClass gen = new BlockClass(root, 1, hash);
+        this.insert(gen);
         this.highestNode = gen;
-        this.edgeBlocks.put(hash, newPool);
+        if (undoLog)
+            this.undoLog = new UndoLogUTXOState(hash, rootPool);
+        else
+            // a copy, like every other block's pool, so flushing the tip never changes it
+            this.edgeBlocks.put(hash, new UTXOPool(rootPool));
     }
 
     private UTXOPool addGenUTXO(UTXOPool newPool, Block genBlock){
@@ -78,7 +180,7 @@ public class BlockChain {
         for ( Transaction tx : genBlock.getTransactions() ){
             int index = 0;
             for (Transaction.Output opt : tx.getOutputs() ){
-                newPool.addUTXO( new UTXO( tx.getHash(), index ), opt );
+                newPool.addUTXO( new UTXO( tx.getHashKey(), index ), opt );
                 index += 1;
             }
         }
@@ -95,7 +197,94 @@ public class BlockChain {
         // THE WAY THIS IS IMPLEMENTED ensures that the oldest block is always returned if
         // two blocks are at the same max height. this is becuase this.highestNode will only
         // change if a new node is strictly higher than the cur highest node
-        return this.edgeBlocks.get(this.highestNode.hash);
+        return this.poolOf(this.highestNode.hash);
+    }
+
+    // the UTXOPool after block hash, whichever way it is stored
+    private UTXOPool poolOf(Hash hash){
+        if (this.undoLog != null)
+            return this.undoLog.poolAt(hash);
+        return this.edgeBlocks.get(hash);
+    }
+
+    /**
+     * Writes the UTXOPool after retained block {@code blockHash} to {@code file} as a
+     * {@link UTXOSnapshot}, for a later {@link #fromSnapshot}.
+     *
+     * @return the snapshot's content hash
+     */
+    public byte[] writeUTXOSnapshot(byte[] blockHash, File file) throws IOException {
+        Hash hash = Hash.of(blockHash);
+        if (!this.curChain.containsKey(hash))
+            throw new IllegalArgumentException("block is not retained");
+        byte[] contentHash = UTXOSnapshot.write(blockHash, this.poolOf(hash), file);
+        // the undo log's live pool belongs on the max height block
+        if (this.undoLog != null)
+            this.undoLog.moveTo(this.highestNode.hash);
+        return contentHash;
+    }
+
+    /**
+     * @return the commitment to the UTXOPool after retained block {@code blockHash} (see
+     *         {@link UTXOCommitment}), or null if the block isn't retained or commitments weren't
+     *         being kept when it was added (see {@link #setUTXOCommitments})
+     */
+    public byte[] getUTXOCommitment(byte[] blockHash) {
+        BlockClass b = this.curChain.get(Hash.of(blockHash));
+        return b == null ? null : b.commitment;
+    }
+
+    /**
+     * Keeps a {@link UTXOCommitment} on every retained block's UTXOPool if {@code enabled}, or
+     * drops them, and records the commitment of every block added from then on for
+     * {@link #getUTXOCommitment}. Retained blocks that still have their pool get theirs
+     * right away; with the undo log that is only the max height block.
+     */
+    public void setUTXOCommitments(boolean enabled) {
+        this.commitments = enabled;
+        if (this.undoLog != null){
+            UTXOPool live = this.undoLog.poolAt(this.highestNode.hash);
+            live.setCommitment(enabled);
+            this.highestNode.commitment = enabled ? live.getCommitment() : null;
+        } else {
+            for (Map.Entry<Hash, UTXOPool> e : this.edgeBlocks.entrySet()){
+                e.getValue().setCommitment(enabled);
+                this.curChain.get(e.getKey()).commitment = enabled ? e.getValue().getCommitment() : null;
+            }
+        }
+    }
+
+    /**
+     * Keeps an {@link AddressIndex} on every retained block's UTXOPool if {@code enabled}, or
+     * drops them. Pools for blocks added later are copied from their parent's and so have one
+     * too, which makes {@link UTXOPool#getBalance} and {@link UTXOPool#selectCoins} on
+     * {@link #getMaxHeightUTXOPool} O(outputs owned).
+     */
+    public void setAddressIndex(boolean enabled) {
+        if (this.undoLog != null)
+            this.undoLog.poolAt(this.highestNode.hash).setAddressIndex(enabled);
+        else
+            for (UTXOPool pool : this.edgeBlocks.values())
+                pool.setAddressIndex(enabled);
+    }
+
+    /** @return the number of blocks currently kept in memory */
+    public int getRetainedBlocks() {
+        return this.curChain.size();
+    }
+
+    /**
+     * @return the serialized size, in bytes, of the blocks currently kept in memory. This counts
+     *         the blocks only, not the UTXOPools or undo deltas kept for them, whose size depends
+     *         on the store and on how much consecutive pools share.
+     */
+    public long getRetainedBlockBytes() {
+        return this.retainedBlockBytes;
+    }
+
+    /** @return the number of blocks waiting for their parent to arrive */
+    public int getOrphanCount() {
+        return this.orphans.size();
     }
 
     /** Get the transaction pool to mine a new block */
@@ -112,60 +301,388 @@ public class BlockChain {
      * block chain height is {@code <=
      * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
      * at height 2.
+     *
+     * <p>
+     * A block whose parent isn't known yet is kept as an orphan and connected, together with any
+     * orphans waiting on it, once the parent is added.
      * 
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
+        if (block.getPrevBlockHash() != null && !this.curChain.containsKey(Hash.of(block.getPrevBlockHash()))){
+            this.orphans.add(block);
+            return false;
+        }
+        if (!this.connect(block))
+            return false;
+        // connect whatever was waiting on this block, and on those, and so on. first in, first
+        // out, so siblings connect in arrival order and the first to arrive keeps the max height
+        ArrayDeque<Block> ready = new ArrayDeque<Block>(this.orphans.takeChildren(Hash.of(block.getHash())));
+        while (!ready.isEmpty()){
+            Block child = ready.poll();
+            if (this.connect(child))
+                ready.addAll(this.orphans.takeChildren(Hash.of(child.getHash())));
+        }
+        return true;
+    }
+
+    /**
+     * Adds {@code blocks} in order, with the same results as calling {@link #addBlock} on each.
+     * Signature verification for the next {@link #PIPELINE_DEPTH} blocks runs on the fork-join
+     * pool while the current block's UTXO changes are committed on this thread; the commit then
+     * finds those signatures in {@link SignatureCache#shared()}.
+     *
+     * @return for each block, whether it was added
+     */
+    public boolean[] addBlocksPipelined(List<Block> blocks) {
+        boolean[] added = new boolean[blocks.size()];
+        if (blocks.isEmpty())
+            return added;
+        // keys are resolved against the state before the batch plus the batch's own outputs
+        byte[] first = blocks.get(0).getPrevBlockHash();
+        Hash start = first != null && this.curChain.containsKey(Hash.of(first))
+                ? Hash.of(first) : this.highestNode.hash;
+        // a private copy, so the verifier never reads a pool the commit stage is changing
+        TxHandler verifier = new TxHandler(this.poolOf(start), true);
+        HashMap<Hash, Transaction> earlier = new HashMap<Hash, Transaction>();
+        ArrayDeque<CompletableFuture<Void>> ahead = new ArrayDeque<CompletableFuture<Void>>();
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        int next = 0;
+        for (int i = 0; i < blocks.size(); i++){
+            // verification is one stage in block order, since later blocks spend earlier outputs
+            while (next < blocks.size() && next <= i + PIPELINE_DEPTH){
+                Block b = blocks.get(next++);
+                tail = tail.thenRunAsync(() -> preverify(verifier, earlier, b));
+                ahead.add(tail);
+            }
+            ahead.poll().join();
+            added[i] = this.addBlock(blocks.get(i));
+        }
+        return added;
+    }
+
+    /**
+     * Adds a batch of blocks that may be on competing forks. Blocks whose parents are already in
+     * the chain are validated concurrently, since each reads only its own parent's pool, and are
+     * then committed one at a time in order of height and then hash, so the resulting chain does
+     * not depend on the order of {@code blocks}. Repeats for blocks that build on the ones just
+     * committed; whatever still can't connect is handed to {@link #addBlock} (e.g. as an orphan).
+     *
+     * @return the number of blocks from {@code blocks} that were added
+     */
+    public int addBlocks(Collection<Block> blocks) {
+        int count = 0;
+        ArrayList<Block> pending = new ArrayList<Block>(blocks);
+        HashSet<Hash> mine = new HashSet<Hash>();
+        for (Block b : blocks)
+            mine.add(Hash.of(b.getHash()));
+        boolean progress = true;
+        while (progress && !pending.isEmpty()){
+            ArrayList<Block> wave = new ArrayList<Block>();
+            ArrayList<Block> rest = new ArrayList<Block>();
+            HashSet<Hash> inWave = new HashSet<Hash>();
+            for (Block b : pending){
+                boolean connects = b.getPrevBlockHash() != null && this.curChain.containsKey(Hash.of(b.getPrevBlockHash()));
+                if (!connects)
+                    rest.add(b);
+                // duplicates within the batch are only tried once
+                else if (inWave.add(Hash.of(b.getHash())))
+                    wave.add(b);
+            }
+            Collections.sort(wave, this::commitOrder);
+            // fetching a parent's pool may move the undo log, so handlers are made here
+            TxHandler[] handlers = new TxHandler[wave.size()];
+            for (int i = 0; i < wave.size(); i++)
+                if (this.admissibleHeight(wave.get(i)) >= 0)
+                    handlers[i] = new TxHandler(this.poolOf(Hash.of(wave.get(i).getPrevBlockHash())), true);
+            Validated[] validated = new Validated[wave.size()];
+            ArrayList<Block> waiting = new ArrayList<Block>();
+            IntStream.range(0, wave.size()).parallel().forEach(i -> {
+                if (handlers[i] != null)
+                    validated[i] = this.validate(wave.get(i), handlers[i]);
+            });
+            for (int i = 0; i < wave.size(); i++){
+                if (validated[i] == null)
+                    continue;
+                // the tip may have moved since validation started
+                int height = this.admissibleHeight(wave.get(i));
+                if (height < 0)
+                    continue;
+                this.commit(validated[i], height);
+                count += 1;
+                // orphans from earlier calls; blocks of this batch are picked up by the next wave
+                for (Block child : this.orphans.takeChildren(Hash.of(wave.get(i).getHash())))
+                    if (!mine.contains(Hash.of(child.getHash())))
+                        waiting.add(child);
+            }
+            // not per commit: the rest of the wave was validated against the unflushed state
+            this.flushLive();
+            for (Block child : waiting)
+                this.addBlock(child);
+            progress = !wave.isEmpty();
+            pending = rest;
+        }
+        for (Block b : pending)
+            if (this.addBlock(b))
+                count += 1;
+        return count;
+    }
+
+    // lower blocks first, ties broken by hash, so the first block seen at a height is deterministic.
+    // both parents have to be in the chain
+    private int commitOrder(Block a, Block b){
+        int ha = this.curChain.get(Hash.of(a.getPrevBlockHash())).height;
+        int hb = this.curChain.get(Hash.of(b.getPrevBlockHash())).height;
+        if (ha != hb)
+            return Integer.compare(ha, hb);
+        byte[] x = a.getHash();
+        byte[] y = b.getHash();
+        for (int i = 0; i < Math.min(x.length, y.length); i++)
+            if (x[i] != y[i])
+                return Integer.compare(x[i] & 0xff, y[i] & 0xff);
+        return Integer.compare(x.length, y.length);
+    }
+
+    // warms the signature cache for block; anything that goes wrong is left to addBlock
+    private static void preverify(TxHandler verifier, HashMap<Hash, Transaction> earlier, Block block){
+        try {
+            earlier.put(block.getCoinbase().getHashKey(), block.getCoinbase());
+            verifier.preverify(block.getTransactions().toArray(new Transaction[0]), earlier);
+        } catch (RuntimeException e) {
+            // not fatal: the commit stage verifies everything again
+        }
+    }
+
+    private boolean connect(Block block) {
         /*
-        - need to increment age
         - need to check if another genesis block
         - need to check if parent is still in the hash table
+        - need to check the block isn't already in the chain
+        - need to check the block is not too far below the max height
         - need to check validity
         - need to grab prev UTXOPool
         - check if the highest, and if so update
         - add block to edgeNodes
-        - add block to chainAge
-        - add block to curChain
+        - add block to curChain/heightIndex
+        - prune blocks that fell out of the window
         */
-        this.nodeAge += 1;
-        //this.removeOldBlocks();
         this.checkTx(block);
+        int height = this.admissibleHeight(block);
+        if (height < 0)
+            return false;
+        Validated v = this.validate(block, new TxHandler(this.poolOf(Hash.of(block.getPrevBlockHash())), true));
+        this.commit(v, height);
+        this.flushLive();
+        return true;
+    }
+
+    // a block whose transactions have been applied to its parent's state but not added yet
+    private static class Validated {
+        Block block;
+        UTXOPool pool;
+        // null unless the undo log is used
+        UTXODelta delta;
+        Transaction[] accepted;
+        // indices of accepted in the block's transactions
+        int[] applied;
+    }
+
+    // the height block would get, or -1 if it can't be added to the chain as it is now
+    private int admissibleHeight(Block block){
         // can't have new genesis block
         if (block.getPrevBlockHash() == null)
-            return false;
-        ByteBuffer parentHash = ByteBuffer.wrap(block.getPrevBlockHash());
+            return -1;
+        Hash parentHash = Hash.of(block.getPrevBlockHash());
         // parent doesn't exist anymore
         if (!this.curChain.containsKey(parentHash))
-            return false;
-        UTXOPool prevPool = this.edgeBlocks.get(parentHash);
-        TxHandler newHandler = new TxHandler(prevPool);
+            return -1;
+        // already have it
+        if (this.curChain.containsKey(Hash.of(block.getHash())))
+            return -1;
+        int height = this.curChain.get(parentHash).height + 1;
+        if (height <= this.highestNode.height - CUT_OFF_AGE)
+            return -1;
+        return height;
+    }
+
+    /*
+     * applies block's transactions to handler, which holds a copy of the parent's pool. touches
+     * nothing else, so blocks on different parents can be validated at the same time
+     */
+    private Validated validate(Block block, TxHandler newHandler){
+        Validated v = new Validated();
+        v.block = block;
+        if (this.undoLog != null){
+            v.delta = new UTXODelta();
+            newHandler.getUTXOPool().record(v.delta);
+        }
         // get all new transactions, convert to array, pass into UTXOPool handler
         // then check to make sure output Tx array is of same size as input Tx
         // array. if not reject bc all transactions have to be valid
-        ByteBuffer curHash = ByteBuffer.wrap(block.getHash());
-        Transaction[] validTrans = newHandler.handleTxs( block.getTransactions().
+        v.accepted = newHandler.handleTxs( block.getTransactions().
             toArray( new Transaction[block.getTransactions().size()] ) );
-        UTXOPool newPool = newHandler.getUTXOPool();
-        newPool.addUTXO( new UTXO(block.getCoinbase().getHash(), 0), block.getCoinbase().getOutput(0) );
-        //this.edgeBlocks.put(parentHash, newPool);
-        this.edgeBlocks.put(curHash, newPool);
-        BlockClass tmp = new BlockClass( block, this.curChain.get(parentHash).height+1, curHash );
+        v.applied = appliedIndices(block, v.accepted);
+        v.pool = newHandler.getUTXOPool();
+        v.pool.addUTXO( new UTXO(block.getCoinbase().getHashKey(), 0), block.getCoinbase().getOutput(0) );
+        if (this.undoLog != null)
+            v.pool.record(null);
+        return v;
+    }
+
+    // handleTxs keeps block order, so one pass over the block finds them
+    private static int[] appliedIndices(Block block, Transaction[] accepted){
+        int[] applied = new int[accepted.length];
+        int k = 0;
+        ArrayList<Transaction> txs = block.getTransactions();
+        for (int i = 0; i < txs.size() && k < accepted.length; i++)
+            if (txs.get(i) == accepted[k])
+                applied[k++] = i;
+        return applied;
+    }
+
+    /*
+     * redoes the UTXO changes of a block read back from the block store, the same way handleTxs
+     * made them (all outputs added, then all inputs spent), without checking anything again
+     */
+    private Validated reapply(Block block, int[] applied){
+        Validated v = new Validated();
+        v.block = block;
+        v.applied = applied;
+        v.accepted = new Transaction[applied.length];
+        for (int k = 0; k < applied.length; k++)
+            v.accepted[k] = block.getTransaction(applied[k]);
+        v.pool = new UTXOPool(this.poolOf(Hash.of(block.getPrevBlockHash())));
+        if (this.undoLog != null){
+            v.delta = new UTXODelta();
+            v.pool.record(v.delta);
+        }
+        for (Transaction tx : v.accepted)
+            for (int i = 0; i < tx.numOutputs(); i++)
+                v.pool.addUTXO(new UTXO(tx.getHashKey(), i), tx.getOutput(i));
+        for (Transaction tx : v.accepted)
+            for (Transaction.Input in : tx.sharedInputs())
+                v.pool.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+        v.pool.addUTXO( new UTXO(block.getCoinbase().getHashKey(), 0), block.getCoinbase().getOutput(0) );
+        if (this.undoLog != null)
+            v.pool.record(null);
+        return v;
+    }
+
+    private void store(BlockStore blocks, Block block, int[] applied){
+        try {
+            blocks.append(block, applied);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void commit(Validated v, int height){
+        if (this.blockStore != null)
+            this.store(this.blockStore, v.block, v.applied);
+        Hash curHash = Hash.of(v.block.getHash());
+        Hash parentHash = Hash.of(v.block.getPrevBlockHash());
+        if (this.undoLog != null)
+            this.undoLog.addBlock(curHash, parentHash, v.delta, v.pool);
+        else
+            this.edgeBlocks.put(curHash, v.pool);
+        BlockClass tmp = new BlockClass( v.block, height, curHash );
+        if (this.commitments)
+            tmp.commitment = v.pool.getCommitment();
+        tmp.accepted = v.accepted;
+        BlockClass oldTip = this.highestNode;
         this.checkHeights(tmp);
-        this.curChain.put(curHash, tmp);
-        QueuePair key = new QueuePair( curHash, this.nodeAge);
-        this.chainAge.add(key);
-        this.filterTransactions(validTrans);
-        return true;
+        // keep the live pool on the max height block
+        if (this.undoLog != null)
+            this.undoLog.moveTo(this.highestNode.hash);
+        this.insert(tmp);
+        // before pruning, which may drop blocks of the branch the tip left
+        this.filterTransactions(oldTip, tmp);
+        this.removeOldBlocks();
+    }
+
+    /*
+     * block boundary: the max height block's pool (with the undo log, the live pool) writes out
+     * what its store buffered, labelled with the block's hash so the store can be reopened on it.
+     * stores save what a flush overwrites into the other copies first, so the other blocks' pools
+     * keep their state, and their buffered changes stay within the retained window
+     */
+    private void flushLive(){
+        this.poolOf(this.highestNode.hash).flush(this.highestNode.hash.toBytes());
     }
 
     private void checkTx(Block block){
 
     }
 
-    private void filterTransactions(Transaction[] validTrans){
-        for (int i = 0; i < validTrans.length; i++)
-            this.tPool.removeTransaction( validTrans[i].getHash() );
-        
+    /*
+     * a block's own transactions leave the pool wherever it is added. double spends of them are
+     * evicted only once the block is on the max height chain, since a side fork may never win.
+     * if the tip moved to another fork, the transactions of the blocks it left are put back
+     * first, and then those the new branch mined or conflicts with are dropped again
+     */
+    private void filterTransactions(BlockClass oldTip, BlockClass added){
+        for (int i = 0; i < added.accepted.length; i++)
+            this.tPool.removeTransaction( added.accepted[i].getHash() );
+        if (this.highestNode != added)
+            return;
+        ArrayList<BlockClass> disconnected = new ArrayList<BlockClass>();
+        ArrayList<BlockClass> connected = new ArrayList<BlockClass>();
+        this.forkPath(oldTip, added, disconnected, connected);
+        for (BlockClass b : disconnected)
+            for (Transaction tx : b.accepted)
+                this.tPool.addTransaction(tx);
+        for (BlockClass b : connected){
+            for (Transaction tx : b.accepted){
+                this.tPool.removeTransaction( tx.getHash() );
+                this.tPool.removeConflicts( tx );
+            }
+        }
+    }
+
+    /*
+     * walks from blocks from and to down to their fork point: left gets the blocks passed on
+     * from's side and joined those on to's side, each starting at the top. false if a walk ran
+     * out of retained blocks first, in which case the lists go as far as blocks are retained
+     */
+    private boolean forkPath(BlockClass from, BlockClass to, ArrayList<BlockClass> left, ArrayList<BlockClass> joined){
+        BlockClass back = from;
+        BlockClass forward = to;
+        while (forward != null && back != null && forward != back){
+            int fh = forward.height;
+            int bh = back.height;
+            if (fh >= bh){
+                joined.add(forward);
+                forward = this.curChain.get(forward.parent);
+            }
+            if (bh >= fh){
+                left.add(back);
+                back = this.curChain.get(back.parent);
+            }
+        }
+        return forward != null && back != null;
+    }
+
+    /**
+     * Collects what changed on the max height chain since it ended at retained block
+     * {@code from}: {@code disconnected} gets the applied transactions of the blocks that left
+     * it and {@code connected} the coinbases and applied transactions of the blocks that joined
+     * it, both lowest block first.
+     *
+     * @return false if {@code from} isn't retained or the fork point isn't, and nothing is known
+     */
+    boolean tipChange(byte[] from, ArrayList<Transaction> disconnected, ArrayList<Transaction> connected){
+        BlockClass old = this.curChain.get(Hash.of(from));
+        ArrayList<BlockClass> left = new ArrayList<BlockClass>();
+        ArrayList<BlockClass> joined = new ArrayList<BlockClass>();
+        if (old == null || !this.forkPath(old, this.highestNode, left, joined))
+            return false;
+        for (int i = left.size() - 1; i >= 0; i--)
+            Collections.addAll(disconnected, left.get(i).accepted);
+        for (int i = joined.size() - 1; i >= 0; i--){
+            connected.add(joined.get(i).block.getCoinbase());
+            Collections.addAll(connected, joined.get(i).accepted);
+        }
+        return true;
     }
 
     private void checkHeights(BlockClass cur){
@@ -174,19 +691,63 @@ public class BlockChain {
         return;
     }
 
-    // remove any block older than current epoch - max_age
-    // remove from queue, block chain and edgeBlocks
+    private void insert(BlockClass cur){
+        this.curChain.put(cur.hash, cur);
+        ArrayList<Hash> atHeight = this.heightIndex.get(cur.height);
+        if (atHeight == null){
+            atHeight = new ArrayList<Hash>();
+            this.heightIndex.put(cur.height, atHeight);
+        }
+        atHeight.add(cur.hash);
+        if (cur.parent != null && this.curChain.containsKey(cur.parent))
+            this.curChain.get(cur.parent).children += 1;
+        this.retainedBlockBytes += cur.bytes;
+    }
+
+    // remove blocks below maxHeight - CUT_OFF_AGE: nothing can be built on them anymore.
+    // remove from heightIndex, block chain and edgeBlocks
     private void removeOldBlocks(){
-        QueuePair curOldest = this.chainAge.peek();
-        if (curOldest == null) return;
-        while (curOldest.curCnt < this.nodeAge - this.CUT_OFF_AGE  ){
-            this.curChain.remove(curOldest.blockHash);
-            this.edgeBlocks.remove(curOldest.blockHash);
-            this.chainAge.remove();
-            curOldest = this.chainAge.peek();
+        int cutOff = this.highestNode.height - CUT_OFF_AGE;
+        boolean removed = true;
+        // removing a block can make its parent or child removable, so go until nothing changes
+        while (removed){
+            removed = false;
+            Iterator<Map.Entry<Integer, ArrayList<Hash>>> it = this.heightIndex.headMap(cutOff).entrySet().iterator();
+            while (it.hasNext()){
+                ArrayList<Hash> atHeight = it.next().getValue();
+                for (int i = atHeight.size() - 1; i >= 0; i--){
+                    BlockClass old = this.curChain.get(atHeight.get(i));
+                    if (!this.canRemove(old))
+                        continue;
+                    this.curChain.remove(old.hash);
+                    this.edgeBlocks.remove(old.hash);
+                    if (this.undoLog != null)
+                        this.undoLog.removeBlock(old.hash);
+                    if (old.parent != null && this.curChain.containsKey(old.parent))
+                        this.curChain.get(old.parent).children -= 1;
+                    this.retainedBlockBytes -= old.bytes;
+                    atHeight.remove(i);
+                    removed = true;
+                }
+                if (atHeight.isEmpty())
+                    it.remove();
+            }
         }
         return;
     }
+
+    /*
+     * with a pool per block, an old block is never needed again. with the undo log, the live pool
+     * still has to be able to walk between any two retained blocks, so an old block can only go
+     * if it is a dead end (no children) or the bottom of the tree with at most one branch above it
+     */
+    private boolean canRemove(BlockClass old){
+        if (this.undoLog == null)
+            return true;
+        boolean bottom = old.parent == null || !this.curChain.containsKey(old.parent);
+        return old.children == 0 || (bottom && old.children <= 1);
+    }
+
     /** Add a transaction to the transaction pool */
     public void addTransaction(Transaction tx) {
         this.tPool.addTransaction(tx);
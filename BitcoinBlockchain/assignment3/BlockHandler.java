@@ -1,12 +1,25 @@
 
 import java.security.PublicKey;
+import java.util.ArrayList;
 
 public class BlockHandler {
     private BlockChain blockChain;
+    // transactions for the next block, kept up to date by processTx
+    private BlockTemplate template;
+    // createBlock latency, in nanoseconds
+    private long lastCreateNanos;
+    private long totalCreateNanos;
+    private long createCount;
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
+        this(blockChain, false);
+    }
+
+    /** if {@code maxFee} is set, {@link #createBlock} fills blocks using {@link MaxFeeTxHandler} */
+    public BlockHandler(BlockChain blockChain, boolean maxFee) {
         this.blockChain = blockChain;
+        this.template = new BlockTemplate(maxFee);
     }
 
     /**
@@ -17,25 +30,33 @@ public class BlockHandler {
     public boolean processBlock(Block block) {
         if (block == null)
             return false;
-        return blockChain.addBlock(block);
+        boolean added = blockChain.addBlock(block);
+        if (added)
+            currentTemplate();
+        return added;
     }
 
     /** create a new {@code block} over the max height {@code block} */
     public Block createBlock(PublicKey myAddress) {
+        long start = System.nanoTime();
         Block parent = blockChain.getMaxHeightBlock();
         byte[] parentHash = parent.getHash();
         Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
-        TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
-        for (int i = 0; i < rTxs.length; i++)
-            current.addTransaction(rTxs[i]);
+        // only re-validates the mempool if the tip moved since the template was built
+        BlockTemplate tmpl = currentTemplate();
+        for (Transaction tx : tmpl.getTransactions())
+            current.addTransaction(tx);
 
         current.finalize();
-        if (blockChain.addBlock(current))
+        boolean added = blockChain.addBlock(current);
+        lastCreateNanos = System.nanoTime() - start;
+        totalCreateNanos += lastCreateNanos;
+        createCount += 1;
+        if (added) {
+            // get the template for the new tip ready for the next call
+            currentTemplate();
             return current;
+        }
         else
             return null;
     }
@@ -43,5 +64,36 @@ public class BlockHandler {
     /** process a {@code Transaction} */
     public void processTx(Transaction tx) {
         blockChain.addTransaction(tx);
+        Block tip = blockChain.getMaxHeightBlock();
+        if (template.isFor(tip))
+            template.offer(tx, blockChain.getTransactionPool());
+        else
+            currentTemplate();
+    }
+
+    /** @return how long the last {@link #createBlock} call took, in nanoseconds */
+    public long getLastCreateBlockNanos() {
+        return lastCreateNanos;
+    }
+
+    /** @return the mean {@link #createBlock} latency so far, in nanoseconds */
+    public long getAverageCreateBlockNanos() {
+        return createCount == 0 ? 0 : totalCreateNanos / createCount;
+    }
+
+    // the template for the current tip. if the tip changed, the template is carried over the
+    // blocks in between, or rebuilt from the mempool if they aren't known any more
+    private BlockTemplate currentTemplate() {
+        Block tip = blockChain.getMaxHeightBlock();
+        if (template.isFor(tip))
+            return template;
+        ArrayList<Transaction> disconnected = new ArrayList<Transaction>();
+        ArrayList<Transaction> connected = new ArrayList<Transaction>();
+        Hash from = template.getTipHash();
+        if (from != null && blockChain.tipChange(from.toBytes(), disconnected, connected))
+            template.advance(tip, blockChain.getMaxHeightUTXOPool(), blockChain.getTransactionPool(), disconnected, connected);
+        else
+            template.rebuild(tip, blockChain.getMaxHeightUTXOPool(), blockChain.getTransactionPool());
+        return template;
     }
 }
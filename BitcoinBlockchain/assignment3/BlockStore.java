@@ -0,0 +1,347 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only store of blocks on disk. Blocks go, in the order they are appended, into
+ * segment files of at most {@link #SEGMENT_SIZE} bytes in one directory. Each record is
+ *
+ * <pre>
+ *   int length | int crc32 | payload
+ * </pre>
+ *
+ * where the payload is the block (with a table of the distinct public keys it uses, so each key
+ * is written once) followed by the indices of the transactions that were applied when the block
+ * was added. Reads go through a {@link MappedByteBuffer} per segment, found with an in-memory
+ * index from block hash to (segment, offset) that is rebuilt by scanning the segments on open.
+ * A torn record at the end, left by a crash during an append, is cut off at that point.
+ *
+ * Every append is forced to disk before it returns, so a block {@link BlockChain} has committed
+ * survives a crash. {@link #setSyncOnAppend} turns that off for callers that would rather
+ * {@link #sync} themselves, at the risk of losing the blocks appended since.
+ */
+public class BlockStore implements Closeable {
+
+    public static final long SEGMENT_SIZE = 64L << 20;
+
+    private static final int HEADER = 8;
+
+    private class Segment {
+        File file;
+        FileChannel channel;
+        long size;
+        // covers at least [0, size) once remapped
+        MappedByteBuffer map;
+
+        private Segment(File file) throws IOException {
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = this.channel.size();
+        }
+
+        private ByteBuffer view(long offset) throws IOException {
+            if (this.map == null || this.map.capacity() < this.size)
+                this.map = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+            ByteBuffer buf = this.map.duplicate();
+            buf.position((int) offset);
+            return buf;
+        }
+    }
+
+    private File dir;
+    private ArrayList<Segment> segments;
+    // block hash to segment number (high 32 bits) and offset of its record (low 32 bits)
+    private HashMap<Hash, Long> index;
+    // decoded public keys, so equal keys are shared between blocks
+    private HashMap<ByteBuffer, PublicKey> keys;
+    private boolean syncOnAppend = true;
+
+    /** Opens the store in {@code dir}, creating it if needed, and indexes what is already there */
+    public BlockStore(File dir) throws IOException {
+        this.dir = dir;
+        this.segments = new ArrayList<Segment>();
+        this.index = new HashMap<Hash, Long>();
+        this.keys = new HashMap<ByteBuffer, PublicKey>();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("can't create " + dir);
+        for (int n = 0;; n++) {
+            File f = segmentFile(n);
+            if (!f.exists())
+                break;
+            this.segments.add(new Segment(f));
+        }
+        this.recover();
+    }
+
+    /** Forces every append to disk before it returns if {@code enabled}, as by default */
+    public synchronized void setSyncOnAppend(boolean enabled) {
+        this.syncOnAppend = enabled;
+    }
+
+    /** @return the number of stored blocks */
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        return this.index.containsKey(Hash.of(hash));
+    }
+
+    /**
+     * Appends {@code block}. {@code applied} lists the indices in {@code block.getTransactions()}
+     * of the transactions that were applied to the UTXO pool when it was added.
+     */
+    public synchronized void append(Block block, int[] applied) throws IOException {
+        byte[] payload = encode(block, applied);
+        if (this.segments.isEmpty() || last().size + HEADER + payload.length > SEGMENT_SIZE && last().size > 0)
+            this.segments.add(new Segment(segmentFile(this.segments.size())));
+        Segment seg = last();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        long offset = seg.size;
+        while (record.hasRemaining())
+            seg.channel.write(record, seg.size + record.position());
+        seg.size += record.limit();
+        if (this.syncOnAppend)
+            seg.channel.force(false);
+        this.index.put(Hash.of(block.getHash()), ((long) (this.segments.size() - 1) << 32) | offset);
+    }
+
+    /** @return the stored block with hash {@code hash}, or null if there is none */
+    public synchronized Block get(byte[] hash) throws IOException {
+        Long loc = this.index.get(Hash.of(hash));
+        if (loc == null)
+            return null;
+        ByteBuffer buf = this.segments.get((int) (loc >>> 32)).view((loc & 0xffffffffL) + HEADER);
+        return this.decodeBlock(buf);
+    }
+
+    /**
+     * Calls {@code action} with every stored block and its applied transaction indices, in the
+     * order they were appended.
+     */
+    public synchronized void replay(BiConsumer<Block, int[]> action) throws IOException {
+        for (Segment seg : this.segments) {
+            long offset = 0;
+            while (offset < seg.size) {
+                ByteBuffer buf = seg.view(offset);
+                int length = buf.getInt();
+                buf.getInt();
+                Block block = this.decodeBlock(buf);
+                action.accept(block, decodeApplied(buf));
+                offset += HEADER + length;
+            }
+        }
+    }
+
+    /** Flushes appended blocks to disk */
+    public synchronized void sync() throws IOException {
+        for (Segment seg : this.segments)
+            seg.channel.force(false);
+    }
+
+    public synchronized void close() throws IOException {
+        this.sync();
+        for (Segment seg : this.segments)
+            seg.channel.close();
+    }
+
+    private Segment last() {
+        return this.segments.get(this.segments.size() - 1);
+    }
+
+    private File segmentFile(int n) {
+        return new File(this.dir, String.format("blocks-%05d.dat", n));
+    }
+
+    // indexes every complete record; the first bad one, and everything after it, is dropped
+    private void recover() throws IOException {
+        for (int n = 0; n < this.segments.size(); n++) {
+            Segment seg = this.segments.get(n);
+            long offset = 0;
+            boolean torn = false;
+            while (offset < seg.size) {
+                if (seg.size - offset < HEADER) {
+                    torn = true;
+                    break;
+                }
+                ByteBuffer buf = seg.view(offset);
+                int length = buf.getInt();
+                int checksum = buf.getInt();
+                if (length < 0 || seg.size - offset - HEADER < length) {
+                    torn = true;
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buf.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    torn = true;
+                    break;
+                }
+                // the block hash leads the payload
+                ByteBuffer p = ByteBuffer.wrap(payload);
+                byte[] hash = new byte[p.getInt()];
+                p.get(hash);
+                this.index.put(Hash.of(hash), ((long) n << 32) | offset);
+                offset += HEADER + length;
+            }
+            if (torn) {
+                seg.map = null;
+                seg.channel.truncate(offset);
+                seg.size = offset;
+                for (int m = this.segments.size() - 1; m > n; m--) {
+                    Segment dropped = this.segments.remove(m);
+                    dropped.channel.close();
+                    dropped.file.delete();
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(Block block, int[] applied) throws IOException {
+        // distinct keys in order of first use
+        ArrayList<byte[]> keyTable = new ArrayList<byte[]>();
+        HashMap<ByteBuffer, Integer> keyIds = new HashMap<ByteBuffer, Integer>();
+        keyId(block.getCoinbase().sharedOutput(0).address, keyTable, keyIds);
+        for (Transaction tx : block.getTransactions())
+            for (Transaction.Output op : tx.sharedOutputs())
+                keyId(op.address, keyTable, keyIds);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeBytes(out, block.getHash());
+        writeBytes(out, block.getPrevBlockHash());
+        out.writeInt(keyTable.size());
+        for (byte[] key : keyTable)
+            writeBytes(out, key);
+        out.writeInt(keyId(block.getCoinbase().sharedOutput(0).address, keyTable, keyIds));
+        out.writeInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions()) {
+            writeBytes(out, tx.getHash());
+            out.writeInt(tx.numInputs());
+            for (Transaction.Input in : tx.sharedInputs()) {
+                writeBytes(out, in.prevTxHash);
+                out.writeInt(in.outputIndex);
+                writeBytes(out, in.signature);
+            }
+            out.writeInt(tx.numOutputs());
+            for (Transaction.Output op : tx.sharedOutputs()) {
+                out.writeDouble(op.value);
+                out.writeInt(keyId(op.address, keyTable, keyIds));
+            }
+        }
+        out.writeInt(applied.length);
+        for (int i : applied)
+            out.writeInt(i);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // index of key in the table, adding it if it's new; -1 for a null key
+    private static int keyId(PublicKey key, ArrayList<byte[]> keyTable, HashMap<ByteBuffer, Integer> keyIds) {
+        if (key == null)
+            return -1;
+        byte[] encoded = key.getEncoded();
+        Integer id = keyIds.get(ByteBuffer.wrap(encoded));
+        if (id == null) {
+            id = keyTable.size();
+            keyTable.add(encoded);
+            keyIds.put(ByteBuffer.wrap(encoded), id);
+        }
+        return id;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private Block decodeBlock(ByteBuffer in) throws IOException {
+        byte[] hash = readBytes(in);
+        byte[] prev = readBytes(in);
+        PublicKey[] keyTable = new PublicKey[in.getInt()];
+        for (int i = 0; i < keyTable.length; i++)
+            keyTable[i] = this.decodeKey(readBytes(in));
+        Block block = new Block(prev, keyAt(keyTable, in.getInt()));
+        int numTxs = in.getInt();
+        for (int t = 0; t < numTxs; t++) {
+            Transaction.Builder builder = new Transaction.Builder();
+            byte[] txHash = readBytes(in);
+            int numInputs = in.getInt();
+            for (int i = 0; i < numInputs; i++) {
+                builder.addInput(readBytes(in), in.getInt());
+                builder.addSignature(readBytes(in), i);
+            }
+            int numOutputs = in.getInt();
+            for (int i = 0; i < numOutputs; i++) {
+                double value = in.getDouble();
+                builder.addOutput(value, keyAt(keyTable, in.getInt()));
+            }
+            Transaction tx = builder.build();
+            if (!Arrays.equals(txHash, tx.getHash()))
+                throw new IOException("stored transaction doesn't match its hash");
+            block.addTransaction(tx);
+        }
+        block.finalize();
+        if (!Arrays.equals(hash, block.getHash()))
+            throw new IOException("stored block doesn't match its hash");
+        return block;
+    }
+
+    private static int[] decodeApplied(ByteBuffer in) {
+        int[] applied = new int[in.getInt()];
+        for (int i = 0; i < applied.length; i++)
+            applied[i] = in.getInt();
+        return applied;
+    }
+
+    private static PublicKey keyAt(PublicKey[] keyTable, int id) {
+        return id < 0 ? null : keyTable[id];
+    }
+
+    private PublicKey decodeKey(byte[] encoded) throws IOException {
+        ByteBuffer k = ByteBuffer.wrap(encoded);
+        PublicKey key = this.keys.get(k);
+        if (key == null) {
+            try {
+                key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("bad stored key", e);
+            }
+            this.keys.put(k, key);
+        }
+        return key;
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        byte[] b = new byte[length];
+        in.get(b);
+        return b;
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * The transactions for the next block on top of a given tip, already validated against the
+ * tip's UTXOPool. New transactions are validated one at a time as they arrive with
+ * {@link #offer}, so sealing a block doesn't have to re-run the whole mempool. When the tip
+ * changes, {@link #advance} carries the template over by looking only at what the blocks
+ * between the two tips changed; {@link #rebuild} starts again from the whole mempool.
+ *
+ * With {@code maxFee}, both take every transaction they looked at, including those that lose a
+ * conflict, with their pooled ancestors, and rerun the {@link MaxFeeTxHandler} selection over them together with the
+ * template's transactions, so the template keeps maximizing fees without going back to the
+ * whole mempool.
+ */
+public class BlockTemplate {
+
+    private Hash tipHash;
+    // holds the tip's pool with every template tx applied
+    private TxHandler handler;
+    private ArrayList<Transaction> txs;
+    private boolean maxFee;
+    // a copy of the tip's pool, for rerunning the selection; null unless maxFee
+    private UTXOPool tipPool;
+
+    /** if {@code maxFee} is set, transactions are selected with {@link MaxFeeTxHandler} */
+    public BlockTemplate(boolean maxFee) {
+        this.txs = new ArrayList<Transaction>();
+        this.maxFee = maxFee;
+    }
+
+    /** @return true if the template was built on top of {@code tip} */
+    public boolean isFor(Block tip) {
+        return this.tipHash != null && this.tipHash.equals(Hash.of(tip.getHash()));
+    }
+
+    /** Drops the current contents and refills the template from all of {@code txPool} */
+    public void rebuild(Block tip, UTXOPool tipPool, TransactionPool txPool) {
+        this.tipHash = Hash.of(tip.getHash());
+        if (this.maxFee) {
+            this.tipPool = new UTXOPool(tipPool);
+            this.select(txPool.getTransactions());
+            return;
+        }
+        this.handler = new TxHandler(tipPool);
+        // trying transactions out doesn't need the commitment
+        this.handler.getUTXOPool().setCommitment(false);
+        this.txs = new ArrayList<Transaction>();
+        for (Transaction tx : this.handler.handleTxs(txPool.getTransactions().toArray(new Transaction[0])))
+            this.txs.add(tx);
+    }
+
+    /**
+     * Moves the template from the tip it was built on to {@code tip}, where the max height chain
+     * lost the blocks whose transactions are {@code disconnected} and gained those whose
+     * transactions (coinbases included) are {@code connected}, as {@link BlockChain#tipChange}
+     * reports them. The transactions of the lost blocks still pooled go in first, then the
+     * template's transactions that are still valid on {@code tipPool}; after that, only pooled
+     * transactions spending an output a gained block created, or an outpoint a dropped template
+     * transaction had spent, can have become valid, so only those are tried.
+     */
+    public void advance(Block tip, UTXOPool tipPool, TransactionPool txPool, ArrayList<Transaction> disconnected,
+            ArrayList<Transaction> connected) {
+        if (this.maxFee) {
+            this.tipHash = Hash.of(tip.getHash());
+            this.tipPool = new UTXOPool(tipPool);
+            this.advanceMaxFee(txPool, disconnected, connected);
+            return;
+        }
+        ArrayList<Transaction> old = this.txs;
+        this.handler = new TxHandler(tipPool);
+        this.handler.getUTXOPool().setCommitment(false);
+        this.txs = new ArrayList<Transaction>();
+        this.tipHash = Hash.of(tip.getHash());
+        for (Transaction tx : disconnected)
+            if (txPool.getTransaction(tx.getHash()) != null)
+                this.tryAdd(tx);
+        ArrayList<Transaction> ready = new ArrayList<Transaction>();
+        for (Transaction tx : old) {
+            if (this.tryAdd(tx))
+                continue;
+            // whatever conflicted with it may be valid now
+            for (Transaction.Input in : tx.sharedInputs())
+                for (Transaction other : txPool.getSpenders(new UTXO(in.prevTxHash, in.outputIndex)))
+                    if (this.tryAdd(other))
+                        ready.add(other);
+        }
+        for (Transaction tx : connected)
+            ready.add(tx);
+        this.addSpenders(ready, txPool);
+    }
+
+    /**
+     * Adds {@code tx} if it is valid on top of the template. Pooled transactions that spend its
+     * outputs and were waiting for it are retried as well.
+     *
+     * @return true if {@code tx} was added
+     */
+    public boolean offer(Transaction tx, TransactionPool txPool) {
+        if (this.handler == null)
+            return false;
+        if (this.maxFee) {
+            ArrayList<Transaction> candidates = new ArrayList<Transaction>(this.txs);
+            HashSet<Hash> seen = new HashSet<Hash>();
+            for (Transaction t : candidates)
+                seen.add(t.getHashKey());
+            if (!seen.add(tx.getHashKey()))
+                return false;
+            candidates.add(tx);
+            ArrayList<Transaction> parents = new ArrayList<Transaction>();
+            parents.add(tx);
+            addDescendants(parents, txPool, candidates, seen);
+            addAncestors(txPool, candidates, seen);
+            this.select(candidates);
+            for (Transaction t : this.txs)
+                if (t.getHashKey().equals(tx.getHashKey()))
+                    return true;
+            return false;
+        }
+        if (!this.tryAdd(tx))
+            return false;
+        ArrayList<Transaction> ready = new ArrayList<Transaction>();
+        ready.add(tx);
+        this.addSpenders(ready, txPool);
+        return true;
+    }
+
+    // advance for maxFee: gathers what advance would try, conflicts included, and selects from it
+    private void advanceMaxFee(TransactionPool txPool, ArrayList<Transaction> disconnected, ArrayList<Transaction> connected) {
+        ArrayList<Transaction> candidates = new ArrayList<Transaction>();
+        HashSet<Hash> seen = new HashSet<Hash>();
+        for (Transaction tx : disconnected)
+            if (txPool.getTransaction(tx.getHash()) != null && seen.add(tx.getHashKey()))
+                candidates.add(tx);
+        for (Transaction tx : this.txs)
+            if (seen.add(tx.getHashKey()))
+                candidates.add(tx);
+        // whatever conflicts with a template transaction may win now
+        for (Transaction tx : this.txs)
+            for (Transaction.Input in : tx.sharedInputs())
+                for (Transaction other : txPool.getSpenders(new UTXO(in.prevTxHash, in.outputIndex)))
+                    if (seen.add(other.getHashKey()))
+                        candidates.add(other);
+        ArrayList<Transaction> parents = new ArrayList<Transaction>(candidates);
+        parents.addAll(connected);
+        addDescendants(parents, txPool, candidates, seen);
+        addAncestors(txPool, candidates, seen);
+        this.select(candidates);
+    }
+
+    // the template becomes the best-fee subset of candidates on top of the tip
+    private void select(ArrayList<Transaction> candidates) {
+        MaxFeeTxHandler selector = new MaxFeeTxHandler(this.tipPool);
+        // trying transactions out doesn't need the commitment
+        selector.getUTXOPool().setCommitment(false);
+        Transaction[] accepted = selector.handleTxs(candidates.toArray(new Transaction[0]));
+        this.handler = new TxHandler(selector.getUTXOPool());
+        this.txs = new ArrayList<Transaction>();
+        for (Transaction tx : accepted)
+            this.txs.add(tx);
+    }
+
+    // adds every pooled transaction spending an output of parents, and so on, to candidates
+    private static void addDescendants(ArrayList<Transaction> parents, TransactionPool txPool,
+            ArrayList<Transaction> candidates, HashSet<Hash> seen) {
+        ArrayList<Transaction> ready = new ArrayList<Transaction>(parents);
+        while (!ready.isEmpty()) {
+            Transaction parent = ready.remove(ready.size() - 1);
+            for (int i = 0; i < parent.numOutputs(); i++)
+                for (Transaction child : txPool.getSpenders(new UTXO(parent.getHashKey(), i)))
+                    if (seen.add(child.getHashKey())) {
+                        candidates.add(child);
+                        ready.add(child);
+                    }
+        }
+    }
+
+    // adds the pooled transactions the candidates spend from, and so on, so packages are whole
+    private static void addAncestors(TransactionPool txPool, ArrayList<Transaction> candidates, HashSet<Hash> seen) {
+        for (int i = 0; i < candidates.size(); i++)
+            for (Transaction.Input in : candidates.get(i).sharedInputs()) {
+                if (in.prevTxHash == null)
+                    continue;
+                Transaction parent = txPool.getTransaction(in.prevTxHash);
+                if (parent != null && seen.add(parent.getHashKey()))
+                    candidates.add(parent);
+            }
+    }
+
+    /** @return the hash of the tip the template is built on, or null if it hasn't been built */
+    Hash getTipHash() {
+        return this.tipHash;
+    }
+
+    // adds tx if it is valid on top of the template
+    private boolean tryAdd(Transaction tx) {
+        if (this.handler.handleTxs(new Transaction[] { tx }).length == 0)
+            return false;
+        this.txs.add(tx);
+        return true;
+    }
+
+    // tries every pooled transaction spending an output of the ready ones, and so on for those added
+    private void addSpenders(ArrayList<Transaction> ready, TransactionPool txPool) {
+        while (!ready.isEmpty()) {
+            Transaction parent = ready.remove(ready.size() - 1);
+            for (int i = 0; i < parent.numOutputs(); i++)
+                for (Transaction child : txPool.getSpenders(new UTXO(parent.getHashKey(), i)))
+                    if (this.tryAdd(child))
+                        ready.add(child);
+        }
+    }
+
+    /** @return the template transactions, in an order they can be applied */
+    public ArrayList<Transaction> getTransactions() {
+        return this.txs;
+    }
+}
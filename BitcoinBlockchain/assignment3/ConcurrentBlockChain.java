@@ -0,0 +1,160 @@
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link BlockChain} that can be read from any number of threads while one thread at a time
+ * writes to it. Writers are serialized on a lock; after every write they publish an immutable
+ * {@link Tip} through a volatile field, so readers always see the max height block, its UTXOPool
+ * and the transaction pool as of the same moment. Getting the tip never blocks; reading its
+ * UTXOPool doesn't either with {@link HashUTXOStore} or {@link PersistentUTXOStore}.
+ *
+ * Publishing copies the tip's UTXOPool and the transaction pool. The transaction pool is
+ * persistent, so that is O(1), and so is the UTXOPool with {@link PersistentUTXOStore},
+ * {@link OffHeapUTXOStore} or {@link DiskUTXOStore}. The last two hand out views that the live
+ * store saves its old entries into before it changes, so a published pool stays as it was even
+ * after the chain flushes. Those views share a lock with the live store, though, so their reads
+ * wait while a write is flushing or saving entries into them. A write that only adds a
+ * transaction keeps the published UTXOPool.
+ */
+public class ConcurrentBlockChain {
+
+    /** The chain's state after one write. The pools must not be modified. */
+    public static final class Tip {
+        private final Block block;
+        private final UTXOPool utxoPool;
+        private final TransactionPool txPool;
+
+        private Tip(Block block, UTXOPool utxoPool, TransactionPool txPool) {
+            this.block = block;
+            this.utxoPool = utxoPool;
+            this.txPool = txPool;
+        }
+
+        public Block getBlock() {
+            return block;
+        }
+
+        public UTXOPool getUTXOPool() {
+            return utxoPool;
+        }
+
+        public TransactionPool getTransactionPool() {
+            return txPool;
+        }
+    }
+
+    private final BlockChain chain;
+    private final ReentrantLock writeLock;
+    private volatile Tip tip;
+
+    public ConcurrentBlockChain(Block genesisBlock) {
+        this(new BlockChain(genesisBlock));
+    }
+
+    public ConcurrentBlockChain(Block genesisBlock, UTXOStore store, boolean undoLog) {
+        this(new BlockChain(genesisBlock, store, undoLog));
+    }
+
+    private ConcurrentBlockChain(BlockChain chain) {
+        this.chain = chain;
+        this.writeLock = new ReentrantLock();
+        this.publish();
+    }
+
+    /** @return the state after the last completed write */
+    public Tip getTip() {
+        return tip;
+    }
+
+    /** Get the maximum height block */
+    public Block getMaxHeightBlock() {
+        return tip.block;
+    }
+
+    /** Get the UTXOPool for mining a new block on top of max height block; must not be modified */
+    public UTXOPool getMaxHeightUTXOPool() {
+        return tip.utxoPool;
+    }
+
+    /** Get the transaction pool to mine a new block; must not be modified */
+    public TransactionPool getTransactionPool() {
+        return tip.txPool;
+    }
+
+    /** Same as {@link BlockChain#addBlock} */
+    public boolean addBlock(Block block) {
+        writeLock.lock();
+        try {
+            boolean added = chain.addBlock(block);
+            if (added)
+                publish();
+            return added;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Same as {@link BlockChain#addBlocksPipelined}; readers see the tip once all are added */
+    public boolean[] addBlocksPipelined(List<Block> blocks) {
+        writeLock.lock();
+        try {
+            boolean[] added = chain.addBlocksPipelined(blocks);
+            publish();
+            return added;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Same as {@link BlockChain#addBlocks}; readers see the tip once all are added */
+    public int addBlocks(Collection<Block> blocks) {
+        writeLock.lock();
+        try {
+            int added = chain.addBlocks(blocks);
+            publish();
+            return added;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Same as {@link BlockChain#setAddressIndex}; the published tip shares the index */
+    public void setAddressIndex(boolean enabled) {
+        writeLock.lock();
+        try {
+            chain.setAddressIndex(enabled);
+            publish();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Same as {@link BlockChain#setUTXOCommitments}; the published tip keeps one too */
+    public void setUTXOCommitments(boolean enabled) {
+        writeLock.lock();
+        try {
+            chain.setUTXOCommitments(enabled);
+            publish();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Add a transaction to the transaction pool */
+    public void addTransaction(Transaction tx) {
+        writeLock.lock();
+        try {
+            chain.addTransaction(tx);
+            tip = new Tip(tip.block, tip.utxoPool, new TransactionPool(chain.getTransactionPool()));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // called with the write lock held; the copies keep later writes out of the published tip
+    private void publish() {
+        tip = new Tip(chain.getMaxHeightBlock(), new UTXOPool(chain.getMaxHeightUTXOPool()),
+                new TransactionPool(chain.getTransactionPool()));
+    }
+}
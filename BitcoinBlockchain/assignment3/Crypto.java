@@ -33,4 +33,30 @@ public class Crypto {
         return false;
 
     }
+
+    /**
+     * Same as {@link #verifySignature(PublicKey, byte[], byte[])} with the message being the data
+     * input {@code index} signs, fed from {@code sigHashes} without building it as one array
+     */
+    public static boolean verifySignature(PublicKey pubKey, TxEncoder.SigHashes sigHashes, int index,
+            byte[] signature) {
+        Signature sig = null;
+        try {
+            sig = Signature.getInstance("SHA256withRSA");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        try {
+            sig.initVerify(pubKey);
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        }
+        try {
+            sigHashes.update(sig, index);
+            return sig.verify(signature);
+        } catch (SignatureException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
 }
@@ -0,0 +1,650 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link UTXOStore} whose outputs live in a log file on disk, so the UTXO set doesn't have to
+ * fit on the heap; only an index from UTXO to file offset and a bounded cache of outputs do.
+ *
+ * Changes are write-back: they collect in an in-memory overlay until {@link #flush()} appends
+ * them to the log in one batch, which {@link BlockChain} does at every block boundary. Each
+ * batch ends in a commit record holding its record count, a CRC32 of the whole batch and a label
+ * ({@link BlockChain} uses the block's hash); reopening the file replays only committed batches
+ * and cuts off anything after the last one, so the store comes back as of a whole flush, and
+ * {@link #getLabel()} says which. Reads
+ * check the overlay, then an LRU cache of clean outputs, then the file. When more than half of
+ * the log is overwritten or removed entries, a flush also compacts it.
+ *
+ * {@link #copy()} is O(1): copies share the file and cache, and each gets its own (persistent)
+ * overlay. Flushing a copy makes the file hold that copy's contents. Before it writes, the
+ * entries it is about to replace are saved into the overlay of every other reachable copy that
+ * doesn't already override them, so copies stay independent of each other (e.g. a pool handed
+ * to readers while {@link BlockChain} keeps flushing its max height pool). A retained copy's
+ * overlay thus holds what differs between it and the flushed state. The store opened on the
+ * file is the exception: once a copy has written to the log, it drops its own unflushed
+ * changes and follows the log, so it always holds the last flushed state and closing it never
+ * writes an older one back. A labelled flush forces the file to disk. A store and its copies
+ * share one lock.
+ */
+public class DiskUTXOStore implements UTXOStore, Closeable {
+
+    public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+    private static final long COMPACT_MIN_BYTES = 1L << 20;
+    private static final int HEADER = 8;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 0;
+    private static final byte COMMIT = 2;
+    // overlay value for a UTXO removed since the last flush
+    private static final Transaction.Output REMOVED = new Transaction.Output(0, null);
+
+    // the log file and everything shared by the copies of a store
+    private static class Log {
+        File file;
+        FileChannel channel;
+        long end;
+        // label of the last committed batch
+        byte[] label;
+        // offset of the live put record for every UTXO in the file
+        HashMap<UTXO, Long> index;
+        long liveBytes;
+        long deadBytes;
+        LinkedHashMap<UTXO, Transaction.Output> cache;
+        HashMap<ByteBuffer, PublicKey> keys;
+        long hits;
+        long misses;
+        long flushes;
+        long lastFlushNanos;
+        long totalFlushNanos;
+        // every store on this log that is still reachable
+        ArrayList<WeakReference<DiskUTXOStore>> stores = new ArrayList<WeakReference<DiskUTXOStore>>();
+        // the store that wrote the last batch, if any
+        WeakReference<DiskUTXOStore> writer;
+    }
+
+    private Log log;
+    private PersistentHashMap<UTXO, Transaction.Output> overlay;
+    private int size;
+    // opened on the file rather than copied; see the class comment
+    private boolean root;
+
+    /** Opens the store kept in {@code file}, creating it if needed, with an LRU cache of {@code cacheSize} outputs */
+    public DiskUTXOStore(File file, int cacheSize) throws IOException {
+        Log log = new Log();
+        log.file = file;
+        log.channel = new RandomAccessFile(file, "rw").getChannel();
+        log.index = new HashMap<UTXO, Long>();
+        log.keys = new HashMap<ByteBuffer, PublicKey>();
+        log.cache = new LinkedHashMap<UTXO, Transaction.Output>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<UTXO, Transaction.Output> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.log = log;
+        this.overlay = PersistentHashMap.empty();
+        this.recover();
+        this.size = log.index.size();
+        this.root = true;
+        log.stores.add(new WeakReference<DiskUTXOStore>(this));
+    }
+
+    // called with the log locked
+    private DiskUTXOStore(Log log, PersistentHashMap<UTXO, Transaction.Output> overlay, int size) {
+        this.log = log;
+        this.overlay = overlay;
+        this.size = size;
+        log.stores.removeIf(ref -> ref.get() == null);
+        log.stores.add(new WeakReference<DiskUTXOStore>(this));
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        synchronized (this.log) {
+            Transaction.Output op = this.overlay.get(utxo);
+            if (op != null)
+                return op == REMOVED ? null : op;
+            return this.read(utxo);
+        }
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        synchronized (this.log) {
+            if (!this.containsKey(utxo))
+                this.size += 1;
+            this.overlay = this.overlay.plus(utxo, txOut);
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        synchronized (this.log) {
+            if (!this.containsKey(utxo))
+                return;
+            this.size -= 1;
+            this.overlay = this.overlay.plus(utxo, REMOVED);
+        }
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        synchronized (this.log) {
+            Transaction.Output op = this.overlay.get(utxo);
+            if (op != null)
+                return op != REMOVED;
+            return this.log.index.containsKey(utxo);
+        }
+    }
+
+    public int size() {
+        synchronized (this.log) {
+            return this.size;
+        }
+    }
+
+    public UTXOStore copy() {
+        synchronized (this.log) {
+            return new DiskUTXOStore(this.log, this.overlay, this.size);
+        }
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        synchronized (this.log) {
+            for (UTXO ut : new ArrayList<UTXO>(this.log.index.keySet()))
+                if (!this.overlay.containsKey(ut))
+                    action.accept(ut, this.read(ut));
+            this.overlay.forEach((ut, op) -> {
+                if (op != REMOVED)
+                    action.accept(ut, op);
+            });
+        }
+    }
+
+    /**
+     * Splits over the index as of this call, then this store's own changes, reading each output
+     * only when it is reached and taking the lock just for that. Other copies may be flushed
+     * while it is in use, since what they replace is saved into this store's overlay.
+     */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        synchronized (this.log) {
+            ArrayList<Map.Entry<UTXO, Transaction.Output>> own = new ArrayList<Map.Entry<UTXO, Transaction.Output>>();
+            this.overlay.forEach((ut, op) -> {
+                if (op != REMOVED)
+                    own.add(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(ut, op));
+            });
+            UTXO[] keys = this.log.index.keySet().toArray(new UTXO[0]);
+            return new IndexSpliterator(keys, 0, keys.length, this.overlay, own);
+        }
+    }
+
+    // the keys of an index snapshot in [lo, hi) that skip doesn't override, after the entries in own
+    private class IndexSpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+        private final UTXO[] keys;
+        private int lo;
+        private final int hi;
+        private final PersistentHashMap<UTXO, Transaction.Output> skip;
+        private ArrayList<Map.Entry<UTXO, Transaction.Output>> own;
+        private int next;
+
+        private IndexSpliterator(UTXO[] keys, int lo, int hi, PersistentHashMap<UTXO, Transaction.Output> skip,
+                ArrayList<Map.Entry<UTXO, Transaction.Output>> own) {
+            this.keys = keys;
+            this.lo = lo;
+            this.hi = hi;
+            this.skip = skip;
+            this.own = own;
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            if (own != null && next < own.size()) {
+                action.accept(own.get(next++));
+                return true;
+            }
+            while (lo < hi) {
+                UTXO ut = keys[lo++];
+                if (skip.containsKey(ut))
+                    continue;
+                Transaction.Output op;
+                synchronized (log) {
+                    // a flush by another copy may have saved the old output into the overlay
+                    op = overlay.get(ut);
+                    if (op == null)
+                        op = read(ut);
+                }
+                if (op == null || op == REMOVED)
+                    continue;
+                action.accept(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(ut, op));
+                return true;
+            }
+            return false;
+        }
+
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            if (own != null && next < own.size()) {
+                Spliterator<Map.Entry<UTXO, Transaction.Output>> prefix = own.subList(next, own.size()).spliterator();
+                own = null;
+                return prefix;
+            }
+            if (hi - lo < 1024)
+                return null;
+            int mid = (lo + hi) >>> 1;
+            IndexSpliterator prefix = new IndexSpliterator(keys, lo, mid, skip, null);
+            lo = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return hi - lo + (own == null ? 0 : own.size() - next);
+        }
+
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+
+    /** Appends the changes made since the last flush to the log, in one batch under the current label */
+    public void flush() {
+        synchronized (this.log) {
+            this.flush(this.log.label);
+        }
+    }
+
+    /**
+     * Appends the changes made since the last flush to the log, in one batch whose commit record
+     * carries {@code label}
+     */
+    public void flush(byte[] label) {
+        synchronized (this.log) {
+            if (this.overlay.size() == 0 && Arrays.equals(label, this.log.label))
+                return;
+            long start = System.nanoTime();
+            ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+            ArrayList<byte[]> records = new ArrayList<byte[]>();
+            this.overlay.forEach((ut, op) -> {
+                // removing what was never flushed needs no record
+                if (op == REMOVED && !this.log.index.containsKey(ut))
+                    return;
+                utxos.add(ut);
+                records.add(encode(ut, op == REMOVED ? null : op));
+            });
+            this.preserve(utxos);
+            byte[] commit = commit(records, label);
+            int total = commit.length;
+            for (byte[] r : records)
+                total += r.length;
+            ByteBuffer batch = ByteBuffer.allocate(total);
+            for (byte[] r : records)
+                batch.put(r);
+            batch.put(commit);
+            batch.flip();
+            try {
+                long offset = this.log.end;
+                while (batch.hasRemaining())
+                    this.log.channel.write(batch, this.log.end + batch.position());
+                this.log.end += total;
+                for (int i = 0; i < utxos.size(); i++) {
+                    UTXO ut = utxos.get(i);
+                    Transaction.Output op = this.overlay.get(ut);
+                    this.retire(ut);
+                    if (op == REMOVED) {
+                        this.log.deadBytes += records.get(i).length;
+                        this.log.cache.remove(ut);
+                    } else {
+                        this.log.index.put(ut, offset);
+                        this.log.liveBytes += records.get(i).length;
+                        this.log.cache.put(ut, op);
+                    }
+                    offset += records.get(i).length;
+                }
+                this.log.deadBytes += commit.length;
+                this.log.label = label == null ? null : label.clone();
+                if (this.log.deadBytes > this.log.liveBytes && this.log.deadBytes > COMPACT_MIN_BYTES)
+                    this.compact();
+                // a labelled state is one to come back to, so it has to be on disk
+                if (label != null)
+                    this.log.channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.overlay = PersistentHashMap.empty();
+            this.log.writer = new WeakReference<DiskUTXOStore>(this);
+            this.followLog();
+            this.log.flushes += 1;
+            this.log.lastFlushNanos = System.nanoTime() - start;
+            this.log.totalFlushNanos += this.log.lastFlushNanos;
+        }
+    }
+
+    /** @return the label of the last batch written to the log, or null if none had one */
+    public byte[] getLabel() {
+        synchronized (this.log) {
+            return this.log.label == null ? null : this.log.label.clone();
+        }
+    }
+
+    /**
+     * Flushes this store, if it is the one that last wrote to the log or nothing has, and closes
+     * the log file. Any other store is behind the log, and writing it out would roll the file
+     * back, so its changes are dropped; flush the live copy before closing.
+     */
+    public void close() throws IOException {
+        synchronized (this.log) {
+            DiskUTXOStore writer = this.log.writer == null ? null : this.log.writer.get();
+            if (writer == null || writer == this)
+                this.flush();
+            this.log.channel.force(false);
+            this.log.channel.close();
+        }
+    }
+
+    /** @return the fraction of reads that missed the overlay but were found in the cache */
+    public double getCacheHitRate() {
+        synchronized (this.log) {
+            long reads = this.log.hits + this.log.misses;
+            return reads == 0 ? 0 : (double) this.log.hits / reads;
+        }
+    }
+
+    public long getCacheHits() {
+        synchronized (this.log) {
+            return this.log.hits;
+        }
+    }
+
+    public long getCacheMisses() {
+        synchronized (this.log) {
+            return this.log.misses;
+        }
+    }
+
+    /** @return how long the last {@link #flush()} took, in nanoseconds */
+    public long getLastFlushNanos() {
+        synchronized (this.log) {
+            return this.log.lastFlushNanos;
+        }
+    }
+
+    /** @return the mean {@link #flush()} latency so far, in nanoseconds */
+    public long getAverageFlushNanos() {
+        synchronized (this.log) {
+            return this.log.flushes == 0 ? 0 : this.log.totalFlushNanos / this.log.flushes;
+        }
+    }
+
+    /** @return the size of the log file, in bytes */
+    public long getFileBytes() {
+        synchronized (this.log) {
+            return this.log.end;
+        }
+    }
+
+    // called with the log locked, before the file's entries for utxos change: saves them into
+    // the other stores that don't override them
+    private void preserve(ArrayList<UTXO> utxos) {
+        Iterator<WeakReference<DiskUTXOStore>> it = this.log.stores.iterator();
+        while (it.hasNext()) {
+            DiskUTXOStore other = it.next().get();
+            if (other == null) {
+                it.remove();
+                continue;
+            }
+            // the stores opened on the file follow it instead
+            if (other == this || other.root)
+                continue;
+            PersistentHashMap<UTXO, Transaction.Output> saved = other.overlay;
+            for (UTXO ut : utxos) {
+                if (saved.containsKey(ut))
+                    continue;
+                Transaction.Output old = this.read(ut);
+                saved = saved.plus(ut, old == null ? REMOVED : old);
+            }
+            other.overlay = saved;
+        }
+    }
+
+    // called with the log locked, after this store wrote to it: the stores opened on the file
+    // drop their changes and hold what the log now does
+    private void followLog() {
+        for (WeakReference<DiskUTXOStore> ref : this.log.stores) {
+            DiskUTXOStore other = ref.get();
+            if (other == null || other == this || !other.root)
+                continue;
+            other.overlay = PersistentHashMap.empty();
+            other.size = this.log.index.size();
+        }
+    }
+
+    // called with the log locked
+    private Transaction.Output read(UTXO utxo) {
+        Transaction.Output op = this.log.cache.get(utxo);
+        if (op != null) {
+            this.log.hits += 1;
+            return op;
+        }
+        Long offset = this.log.index.get(utxo);
+        if (offset == null)
+            return null;
+        this.log.misses += 1;
+        try {
+            op = this.readAt(offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.log.cache.put(utxo, op);
+        return op;
+    }
+
+    // the output of the put record at offset
+    private Transaction.Output readAt(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(header, offset);
+        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+        readFully(body, offset + HEADER);
+        body.flip();
+        body.get();
+        skipBytes(body);
+        body.getInt();
+        double value = body.getDouble();
+        return new Transaction.Output(value, this.decodeKey(readBytes(body)));
+    }
+
+    private void readFully(ByteBuffer dst, long offset) throws IOException {
+        while (dst.hasRemaining())
+            if (this.log.channel.read(dst, offset + dst.position()) < 0)
+                throw new IOException("unexpected end of " + this.log.file);
+    }
+
+    // the live record for ut, if any, is about to be replaced
+    private void retire(UTXO ut) throws IOException {
+        Long old = this.log.index.remove(ut);
+        if (old == null)
+            return;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(header, old);
+        long length = HEADER + header.getInt(0);
+        this.log.liveBytes -= length;
+        this.log.deadBytes += length;
+    }
+
+    // rewrites just the live records into a new file and swaps it in
+    private void compact() throws IOException {
+        File tmp = new File(this.log.file.getPath() + ".compact");
+        HashMap<UTXO, Long> index = new HashMap<UTXO, Long>();
+        ArrayList<byte[]> records = new ArrayList<byte[]>(this.log.index.size());
+        long end = 0;
+        try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+            out.truncate(0);
+            for (Map.Entry<UTXO, Long> e : this.log.index.entrySet()) {
+                byte[] record = encode(e.getKey(), this.readAt(e.getValue()));
+                index.put(e.getKey(), end);
+                write(out, record, end);
+                end += record.length;
+                records.add(record);
+            }
+            // one batch: everything live, committed under the current label
+            byte[] commit = commit(records, this.log.label);
+            write(out, commit, end);
+            out.force(false);
+            this.log.deadBytes = commit.length;
+            this.log.liveBytes = end;
+            end += commit.length;
+        }
+        this.log.channel.close();
+        Files.move(tmp.toPath(), this.log.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.log.channel = new RandomAccessFile(this.log.file, "rw").getChannel();
+        this.log.index = index;
+        this.log.end = end;
+    }
+
+    // rebuilds the index from the committed batches in the log; a batch without a commit record
+    // matching it, as a crash mid-flush leaves, is cut off along with anything after it
+    private void recover() throws IOException {
+        long size = this.log.channel.size();
+        long offset = 0;
+        long committed = 0;
+        ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        ArrayList<Boolean> puts = new ArrayList<Boolean>();
+        CRC32 batchCrc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (size - offset >= HEADER) {
+            header.clear();
+            readFully(header, offset);
+            int length = header.getInt(0);
+            if (length <= 0 || size - offset - HEADER < length)
+                break;
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, offset + HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != header.getInt(4))
+                break;
+            body.flip();
+            byte op = body.get();
+            if (op == COMMIT) {
+                if (body.getInt() != utxos.size() || body.getInt() != (int) batchCrc.getValue())
+                    break;
+                for (int i = 0; i < utxos.size(); i++) {
+                    UTXO ut = utxos.get(i);
+                    this.retire(ut);
+                    long at = offsets.get(i);
+                    long recordBytes = (i + 1 < offsets.size() ? offsets.get(i + 1) : offset) - at;
+                    if (puts.get(i)) {
+                        this.log.index.put(ut, at);
+                        this.log.liveBytes += recordBytes;
+                    } else {
+                        this.log.deadBytes += recordBytes;
+                    }
+                }
+                int labelLength = body.getInt();
+                if (labelLength < 0) {
+                    this.log.label = null;
+                } else {
+                    this.log.label = new byte[labelLength];
+                    body.get(this.log.label);
+                }
+                this.log.deadBytes += HEADER + length;
+                offset += HEADER + length;
+                committed = offset;
+                utxos.clear();
+                offsets.clear();
+                puts.clear();
+                batchCrc.reset();
+                continue;
+            }
+            utxos.add(new UTXO(readBytes(body), body.getInt()));
+            offsets.add(offset);
+            puts.add(op == PUT);
+            batchCrc.update(header.array());
+            batchCrc.update(body.array());
+            offset += HEADER + length;
+        }
+        this.log.channel.truncate(committed);
+        this.log.end = committed;
+    }
+
+    // the commit record ending a batch of records: their count, their CRC32 and label
+    private static byte[] commit(ArrayList<byte[]> records, byte[] label) {
+        CRC32 batchCrc = new CRC32();
+        for (byte[] r : records)
+            batchCrc.update(r);
+        int length = 1 + 4 + 4 + 4 + (label == null ? 0 : label.length);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + length);
+        buf.putInt(length).putInt(0);
+        buf.put(COMMIT).putInt(records.size()).putInt((int) batchCrc.getValue());
+        if (label == null)
+            buf.putInt(-1);
+        else
+            buf.putInt(label.length).put(label);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER, length);
+        buf.putInt(4, (int) crc.getValue());
+        return buf.array();
+    }
+
+    private static void write(FileChannel out, byte[] record, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        while (buf.hasRemaining())
+            out.write(buf, offset + buf.position());
+    }
+
+    // int length | int crc32 | byte op | tx hash | int index [ | double value | address ]
+    private static byte[] encode(UTXO ut, Transaction.Output op) {
+        byte[] key = op == null ? null : op.address.getEncoded();
+        int length = 1 + 4 + ut.getTxHash().length + 4 + (op == null ? 0 : 8 + 4 + key.length);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + length);
+        buf.putInt(length).putInt(0);
+        buf.put(op == null ? REMOVE : PUT);
+        buf.putInt(ut.getTxHash().length).put(ut.getTxHash()).putInt(ut.getIndex());
+        if (op != null)
+            buf.putDouble(op.value).putInt(key.length).put(key);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER, length);
+        buf.putInt(4, (int) crc.getValue());
+        return buf.array();
+    }
+
+    private PublicKey decodeKey(byte[] encoded) throws IOException {
+        ByteBuffer k = ByteBuffer.wrap(encoded);
+        PublicKey key = this.log.keys.get(k);
+        if (key == null) {
+            try {
+                key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("bad stored key", e);
+            }
+            this.log.keys.put(k, key);
+        }
+        return key;
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return b;
+    }
+
+    private static void skipBytes(ByteBuffer in) {
+        int length = in.getInt();
+        in.position(in.position() + length);
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+/**
+ * An immutable transaction or block hash, for use as a map key. A 32-byte (SHA-256) hash is held
+ * as four big-endian longs with its hash code computed up front, so equals is four long compares
+ * and building one copies no array. Hashes of any other length, which only come from hand-built
+ * transactions, are kept as a copy of the bytes and compared the slow way.
+ *
+ * Ordering matches {@link UTXO#compareTo}: shorter hashes first, then by signed byte.
+ */
+public final class Hash implements Comparable<Hash> {
+
+    public static final int SIZE = 32;
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+    // the bytes of a hash that isn't SIZE long, else null
+    private final byte[] other;
+    private final int hash;
+
+    private Hash(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.other = null;
+        long h = ((w0 * 31 + w1) * 31 + w2) * 31 + w3;
+        this.hash = (int) (h ^ (h >>> 32));
+    }
+
+    private Hash(byte[] b) {
+        this.w0 = this.w1 = this.w2 = this.w3 = 0;
+        this.other = b.clone();
+        this.hash = Arrays.hashCode(this.other);
+    }
+
+    /** @return the hash with bytes {@code b}, which may be reused afterwards */
+    public static Hash of(byte[] b) {
+        if (b.length != SIZE)
+            return new Hash(b);
+        return new Hash(word(b, 0), word(b, 8), word(b, 16), word(b, 24));
+    }
+
+    /** @return the 32-byte hash whose big-endian 8-byte words are {@code w0} to {@code w3} */
+    static Hash of(long w0, long w1, long w2, long w3) {
+        return new Hash(w0, w1, w2, w3);
+    }
+
+    /** @return the number of bytes in the hash */
+    public int length() {
+        return other == null ? SIZE : other.length;
+    }
+
+    /** @return a new array holding the hash's bytes */
+    public byte[] toBytes() {
+        if (other != null)
+            return other.clone();
+        byte[] b = new byte[SIZE];
+        putWord(b, 0, w0);
+        putWord(b, 8, w1);
+        putWord(b, 16, w2);
+        putWord(b, 24, w3);
+        return b;
+    }
+
+    /** @return big-endian word {@code i} (0 to 3) of a 32-byte hash */
+    long word(int i) {
+        switch (i) {
+        case 0:
+            return w0;
+        case 1:
+            return w1;
+        case 2:
+            return w2;
+        default:
+            return w3;
+        }
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Hash))
+            return false;
+        Hash h = (Hash) o;
+        if (other != null || h.other != null)
+            return other != null && h.other != null && Arrays.equals(other, h.other);
+        return hash == h.hash & w0 == h.w0 & w1 == h.w1 & w2 == h.w2 & w3 == h.w3;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public int compareTo(Hash h) {
+        if (other != null || h.other != null) {
+            int lengths = Integer.compare(length(), h.length());
+            if (lengths != 0)
+                return lengths;
+            byte[] x = toBytes(), y = h.toBytes();
+            for (int i = 0; i < x.length; i++)
+                if (x[i] != y[i])
+                    return Byte.compare(x[i], y[i]);
+            return 0;
+        }
+        if (w0 != h.w0)
+            return compareWords(w0, h.w0);
+        if (w1 != h.w1)
+            return compareWords(w1, h.w1);
+        if (w2 != h.w2)
+            return compareWords(w2, h.w2);
+        return w3 == h.w3 ? 0 : compareWords(w3, h.w3);
+    }
+
+    // compares the first byte where x and y differ, as signed bytes
+    private static int compareWords(long x, long y) {
+        int shift = 56 - (Long.numberOfLeadingZeros(x ^ y) & ~7);
+        return Byte.compare((byte) (x >>> shift), (byte) (y >>> shift));
+    }
+
+    /** @return the big-endian 8-byte word of {@code b} at {@code off} */
+    static long word(byte[] b, int off) {
+        long w = 0;
+        for (int i = off; i < off + 8; i++)
+            w = (w << 8) | (b[i] & 0xff);
+        return w;
+    }
+
+    private static void putWord(byte[] b, int off, long w) {
+        for (int i = off + 7; i >= off; i--) {
+            b[i] = (byte) w;
+            w >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+// Compares the key types used for hash-keyed maps:
+//   ByteArrayWrapper  copies the bytes, compares and hashes them one at a time
+//   ByteBuffer        wraps the array without copying, hashes it on every call
+//   Hash              four longs with the hash code computed once
+// in the workloads the chain runs: filling a map from byte[] hashes, looking each one up again
+// through a freshly built key (as for tx.getHash() or in.prevTxHash), looking up with keys that
+// are already held, and a mix of puts and removes like the transaction pool's churn.
+// Each workload runs a few untimed rounds first to let the JIT settle. The key types share the
+// map code, so for numbers that don't depend on which type ran first, run one type per JVM.
+//
+// usage: java HashKeyBenchmark [numKeys] [rounds] [ByteArrayWrapper|ByteBuffer|Hash]
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.function.Function;
+
+public class HashKeyBenchmark {
+
+    private static final int WARMUP = 3;
+
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Random random = new Random(42);
+        byte[][] hashes = new byte[numKeys][Hash.SIZE];
+        for (byte[] h : hashes)
+            random.nextBytes(h);
+
+        String only = args.length > 2 ? args[2] : null;
+        if (only == null || only.equals("ByteArrayWrapper"))
+            run("ByteArrayWrapper", hashes, rounds, ByteArrayWrapper::new);
+        if (only == null || only.equals("ByteBuffer"))
+            run("ByteBuffer", hashes, rounds, ByteBuffer::wrap);
+        if (only == null || only.equals("Hash"))
+            run("Hash", hashes, rounds, Hash::of);
+    }
+
+    private static <K> void run(String name, byte[][] hashes, int rounds, Function<byte[], K> key) {
+        long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+        long sink = 0;
+        for (int r = 0; r < WARMUP + rounds; r++) {
+            long[] t = new long[4];
+            long start = System.nanoTime();
+            HashMap<K, Integer> map = new HashMap<K, Integer>();
+            for (int i = 0; i < hashes.length; i++)
+                map.put(key.apply(hashes[i]), i);
+            t[0] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (byte[] h : hashes)
+                sink += map.get(key.apply(h));
+            t[1] = System.nanoTime() - start;
+
+            ArrayList<K> held = new ArrayList<K>(map.keySet());
+            start = System.nanoTime();
+            for (K k : held)
+                sink += map.get(k);
+            t[2] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < hashes.length; i++) {
+                byte[] h = hashes[i];
+                if ((i & 1) == 0)
+                    map.remove(key.apply(h));
+                else
+                    map.put(key.apply(h), -i);
+            }
+            t[3] = System.nanoTime() - start;
+            sink += map.size();
+
+            if (r >= WARMUP)
+                for (int w = 0; w < 4; w++)
+                    best[w] = Math.min(best[w], t[w]);
+        }
+        double n = hashes.length;
+        System.out.printf("%-18s %7.1f ns/put %7.1f ns/get-fresh %7.1f ns/get-held %7.1f ns/churn%n", name,
+                best[0] / n, best[1] / n, best[2] / n, best[3] / n);
+        // keep the results live
+        if (sink == 42)
+            System.out.println();
+    }
+}
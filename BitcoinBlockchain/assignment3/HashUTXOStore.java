@@ -0,0 +1,86 @@
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/** The default {@link UTXOStore}: a plain {@code HashMap}, copied in full by {@link #copy()} */
+public class HashUTXOStore implements UTXOStore {
+
+    private HashMap<UTXO, Transaction.Output> H;
+
+    public HashUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashUTXOStore(HashUTXOStore other) {
+        H = new HashMap<UTXO, Transaction.Output>(other.H);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        H.remove(utxo);
+    }
+
+    public Transaction.Output getAndRemove(UTXO utxo) {
+        return H.remove(utxo);
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    public UTXOStore copy() {
+        return new HashUTXOStore(this);
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        H.forEach(action);
+    }
+
+    /**
+     * Splits the map's own entry set, handing out immutable copies of its entries, since a
+     * {@code setValue} on the map's entries would get past the pool
+     */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return new EntrySpliterator(H.entrySet().spliterator());
+    }
+
+    private static class EntrySpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+        private final Spliterator<Map.Entry<UTXO, Transaction.Output>> entries;
+
+        private EntrySpliterator(Spliterator<Map.Entry<UTXO, Transaction.Output>> entries) {
+            this.entries = entries;
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            return entries.tryAdvance(e -> action.accept(
+                    new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(e.getKey(), e.getValue())));
+        }
+
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            Spliterator<Map.Entry<UTXO, Transaction.Output>> prefix = entries.trySplit();
+            return prefix == null ? null : new EntrySpliterator(prefix);
+        }
+
+        public long estimateSize() {
+            return entries.estimateSize();
+        }
+
+        public int characteristics() {
+            return entries.characteristics();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns public keys: each distinct key (by exponent and modulus) gets a small int id the first
+ * time it is seen, along with its encoding, which every later {@link Transaction.Output} paying
+ * it shares. Outputs compare and hash their addresses by id instead of by {@code BigInteger}.
+ *
+ * Looking up a known key takes no lock; handing out a new id is synchronized. The registry holds
+ * at most {@code maxKeys} keys, and once full it stops assigning ids: further keys get id -1 and
+ * are compared by content, so results stay correct and only the fast path is lost.
+ */
+public class KeyRegistry {
+
+    public static final int DEFAULT_MAX_KEYS = 1 << 20;
+
+    private static final KeyRegistry GLOBAL = new KeyRegistry(DEFAULT_MAX_KEYS);
+
+    // the canonical encoding of each interned key, by content
+    private final ConcurrentHashMap<TxEncoder.KeyBytes, TxEncoder.KeyBytes> byContent;
+    // key by id; entries below count are set
+    private volatile PublicKey[] keys;
+    private volatile int count;
+    private final int maxKeys;
+
+    public KeyRegistry(int maxKeys) {
+        this.byContent = new ConcurrentHashMap<TxEncoder.KeyBytes, TxEncoder.KeyBytes>();
+        this.keys = new PublicKey[Math.min(maxKeys, 1024)];
+        this.maxKeys = maxKeys;
+    }
+
+    /** @return the registry used by {@link Transaction.Output} */
+    public static KeyRegistry global() {
+        return GLOBAL;
+    }
+
+    /** @return the id of {@code key}, interning it if it's new, or -1 if the registry is full */
+    public int intern(PublicKey key) {
+        return this.internBytes(key).id;
+    }
+
+    /** @return the key with id {@code id}, or null if there is none */
+    public PublicKey get(int id) {
+        if (id < 0 || id >= this.count)
+            return null;
+        return this.keys[id];
+    }
+
+    /** @return the number of interned keys */
+    public int size() {
+        return this.count;
+    }
+
+    public int getMaxKeys() {
+        return this.maxKeys;
+    }
+
+    /** @return the encoding of {@code key}, sharing the interned one's id and arrays if it has one */
+    TxEncoder.KeyBytes internBytes(PublicKey key) {
+        TxEncoder.KeyBytes candidate = new TxEncoder.KeyBytes(key);
+        TxEncoder.KeyBytes interned = this.byContent.get(candidate);
+        if (interned == null)
+            interned = this.assign(candidate);
+        if (interned == null)
+            return candidate;
+        return interned.key == key ? interned : new TxEncoder.KeyBytes(key, interned);
+    }
+
+    // null if the registry is full
+    private synchronized TxEncoder.KeyBytes assign(TxEncoder.KeyBytes candidate) {
+        TxEncoder.KeyBytes interned = this.byContent.get(candidate);
+        if (interned != null)
+            return interned;
+        int id = this.count;
+        if (id >= this.maxKeys)
+            return null;
+        if (id == this.keys.length) {
+            PublicKey[] grown = new PublicKey[(int) Math.min(this.maxKeys, 2L * id)];
+            System.arraycopy(this.keys, 0, grown, 0, id);
+            this.keys = grown;
+        }
+        interned = new TxEncoder.KeyBytes(candidate, id);
+        this.keys[id] = candidate.key;
+        // publishes the key above to get()
+        this.count = id + 1;
+        this.byContent.put(interned, interned);
+        return interned;
+    }
+}
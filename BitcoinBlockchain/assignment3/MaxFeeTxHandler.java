@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A drop-in alternative to {@link TxHandler} whose {@link #handleTxs} picks a mutually valid subset
+ * of the proposed transactions with as much total fee (inputs minus outputs) as it can find,
+ * instead of greedily taking them in array order.
+ *
+ * Exact fee maximization is NP-hard, so this uses ancestor-feerate selection: a transaction is
+ * scored together with its not yet selected in-batch ancestors (fee / raw size of the whole
+ * package), the best package is taken, and every transaction spending an output the package just
+ * spent is pruned along with its descendants. Scores that change because an ancestor got
+ * selected are refreshed lazily when they come off the queue, which keeps the whole run at about
+ * O(n log n) for n transactions as long as ancestor chains stay short.
+ */
+public class MaxFeeTxHandler {
+
+    /** packages with more unselected ancestors than this are not considered until some are selected */
+    public static final int ANCESTOR_LIMIT = 25;
+
+    private static class Candidate {
+        Transaction tx;
+        int order;
+        double fee;
+        int size;
+        ArrayList<Candidate> parents = new ArrayList<Candidate>();
+        ArrayList<Candidate> children = new ArrayList<Candidate>();
+        boolean included;
+        boolean dead;
+
+        private Candidate(Transaction tx, int order) {
+            this.tx = tx;
+            this.order = order;
+        }
+    }
+
+    private static class Entry {
+        Candidate cand;
+        double score;
+
+        private Entry(Candidate cand, double score) {
+            this.cand = cand;
+            this.score = score;
+        }
+    }
+
+    private TxHandler handler;
+
+    /**
+     * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
+     * {@code utxoPool}, copied the same way {@link TxHandler} does.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool) {
+        this.handler = new TxHandler(utxoPool);
+    }
+
+    public UTXOPool getUTXOPool() {
+        return this.handler.getUTXOPool();
+    }
+
+    /** @see TxHandler#isValidTx(Transaction) */
+    public boolean isValidTx(Transaction tx) {
+        return this.handler.isValidTx(tx);
+    }
+
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, returning a
+     * mutually valid array of accepted transactions with a high total fee, and updating the
+     * current UTXO pool as appropriate. Returned transactions are in an order they can be applied.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        UTXOPool pool = this.handler.getUTXOPool();
+        ArrayList<Candidate> cands = new ArrayList<Candidate>();
+        HashMap<Hash, Candidate> byHash = new HashMap<Hash, Candidate>();
+        for (Transaction tx : possibleTxs) {
+            if (tx == null || tx.getHash() == null)
+                continue;
+            Hash hash = tx.getHashKey();
+            if (byHash.containsKey(hash))
+                continue;
+            Candidate c = new Candidate(tx, cands.size());
+            cands.add(c);
+            byHash.put(hash, c);
+        }
+
+        // link in-batch parents, compute fees and index who spends what
+        HashMap<UTXO, ArrayList<Candidate>> spenders = new HashMap<UTXO, ArrayList<Candidate>>();
+        for (Candidate c : cands) {
+            double inputSum = 0;
+            double outputSum = 0;
+            for (Transaction.Input in : c.tx.sharedInputs()) {
+                UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+                Transaction.Output prev = pool.getTxOutput(ut);
+                if (prev == null) {
+                    Candidate parent = byHash.get(Hash.of(in.prevTxHash));
+                    if (parent != null && parent != c && in.outputIndex >= 0)
+                        prev = parent.tx.sharedOutput(in.outputIndex);
+                    if (prev != null && !c.parents.contains(parent)) {
+                        c.parents.add(parent);
+                        parent.children.add(c);
+                    }
+                }
+                if (prev == null) {
+                    c.dead = true;
+                    continue;
+                }
+                inputSum += prev.value;
+                ArrayList<Candidate> list = spenders.get(ut);
+                if (list == null) {
+                    list = new ArrayList<Candidate>();
+                    spenders.put(ut, list);
+                }
+                list.add(c);
+            }
+            for (Transaction.Output op : c.tx.sharedOutputs())
+                outputSum += op.value;
+            c.fee = inputSum - outputSum;
+            c.size = Math.max(1, TxEncoder.rawTxSize(c.tx));
+            if (c.fee < 0)
+                c.dead = true;
+        }
+        for (Candidate c : cands)
+            if (c.dead)
+                kill(c);
+
+        PriorityQueue<Entry> queue = new PriorityQueue<Entry>(Math.max(1, cands.size()), (a, b) -> {
+            int cmp = Double.compare(b.score, a.score);
+            return cmp != 0 ? cmp : Integer.compare(a.cand.order, b.cand.order);
+        });
+        for (Candidate c : cands)
+            push(queue, c);
+
+        ArrayList<Transaction> selected = new ArrayList<Transaction>();
+        while (!queue.isEmpty()) {
+            Entry e = queue.poll();
+            Candidate c = e.cand;
+            if (c.included || c.dead)
+                continue;
+            ArrayList<Candidate> pkg = packageOf(c);
+            if (pkg == null)
+                continue;
+            // an ancestor got selected since this entry was queued, so re-rank it
+            double score = score(pkg);
+            if (score != e.score) {
+                queue.add(new Entry(c, score));
+                continue;
+            }
+            for (Candidate m : pkg) {
+                if (!this.include(m, spenders, selected))
+                    break;
+                for (Candidate child : m.children)
+                    push(queue, child);
+            }
+        }
+        return selected.toArray(new Transaction[selected.size()]);
+    }
+
+    // validates m against the pool (applying it if valid) and prunes everything it conflicts with
+    private boolean include(Candidate m, HashMap<UTXO, ArrayList<Candidate>> spenders,
+            ArrayList<Transaction> selected) {
+        if (this.handler.handleTxs(new Transaction[] { m.tx }).length == 0) {
+            kill(m);
+            return false;
+        }
+        m.included = true;
+        selected.add(m.tx);
+        for (Transaction.Input in : m.tx.sharedInputs()) {
+            ArrayList<Candidate> list = spenders.get(new UTXO(in.prevTxHash, in.outputIndex));
+            if (list == null)
+                continue;
+            for (Candidate other : list)
+                if (other != m)
+                    kill(other);
+        }
+        return true;
+    }
+
+    private static void push(PriorityQueue<Entry> queue, Candidate c) {
+        if (c.included || c.dead)
+            return;
+        ArrayList<Candidate> pkg = packageOf(c);
+        if (pkg != null)
+            queue.add(new Entry(c, score(pkg)));
+    }
+
+    private static double score(ArrayList<Candidate> pkg) {
+        double fee = 0;
+        long size = 0;
+        for (Candidate m : pkg) {
+            fee += m.fee;
+            size += m.size;
+        }
+        return fee / size;
+    }
+
+    /**
+     * @return {@code c} and its unselected ancestors, parents before children, or null if one of
+     *         them is dead or there are more than {@link #ANCESTOR_LIMIT}
+     */
+    private static ArrayList<Candidate> packageOf(Candidate c) {
+        ArrayList<Candidate> pkg = new ArrayList<Candidate>();
+        Set<Candidate> seen = Collections.newSetFromMap(new IdentityHashMap<Candidate, Boolean>());
+        if (!collect(c, pkg, seen, 0))
+            return null;
+        return pkg;
+    }
+
+    private static boolean collect(Candidate c, ArrayList<Candidate> pkg, Set<Candidate> seen, int depth) {
+        if (c.included || !seen.add(c))
+            return true;
+        if (c.dead || depth > ANCESTOR_LIMIT)
+            return false;
+        for (Candidate p : c.parents)
+            if (!collect(p, pkg, seen, depth + 1))
+                return false;
+        if (pkg.size() >= ANCESTOR_LIMIT)
+            return false;
+        pkg.add(c);
+        return true;
+    }
+
+    // marks c and everything that depends on it as unusable
+    private static void kill(Candidate c) {
+        ArrayList<Candidate> stack = new ArrayList<Candidate>();
+        stack.add(c);
+        while (!stack.isEmpty()) {
+            Candidate cur = stack.remove(stack.size() - 1);
+            if (cur.included)
+                continue;
+            cur.dead = true;
+            for (Candidate child : cur.children)
+                if (!child.dead)
+                    stack.add(child);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A {@link UTXOStore} kept in a direct (off-heap) buffer as an open-addressing hash table with
+ * linear probing, so millions of UTXOs don't add millions of objects for the GC to trace.
+ *
+ * Every slot is a fixed-width record: the 32-byte transaction hash, the output index, an id
+ * into an address table and the output value. Addresses are stored once in the on-heap table,
+ * which copies of the store share. Outputs handed out by {@link #get} are rebuilt from the
+ * record, so they are equal to, but not the same object as, the ones put in.
+ *
+ * {@link #copy()} is O(1): it returns a view that keeps its own changes in a persistent overlay
+ * and reads everything else from this table, which is what {@link TxHandler} gets when it copies
+ * the pool to validate a block. Before the table itself changes, the old contents of the entry
+ * are saved into every view that doesn't already override it, so views stay independent of the
+ * table as {@link UTXOStore#copy} requires. Flushing a view writes its contents into the table,
+ * which is how {@link BlockChain}'s undo-log mode moves the live pool's changes down at each
+ * block boundary. The table and its views share one lock.
+ */
+public class OffHeapUTXOStore implements UTXOStore {
+
+    private static final int HASH_BYTES = Hash.SIZE;
+    // slot layout: txHash | index | address id + 1 (0 marks an empty slot) | value
+    private static final int INDEX_OFFSET = HASH_BYTES;
+    private static final int ADDRESS_OFFSET = INDEX_OFFSET + 4;
+    private static final int VALUE_OFFSET = ADDRESS_OFFSET + 4;
+    private static final int SLOT_BYTES = VALUE_OFFSET + 8;
+    private static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_BYTES);
+
+    /** append-only address table, shared between a store and its copies */
+    private static class AddressTable {
+        private ArrayList<PublicKey> addresses = new ArrayList<PublicKey>();
+        private HashMap<PublicKey, Integer> ids = new HashMap<PublicKey, Integer>();
+
+        synchronized int idOf(PublicKey address) {
+            Integer id = ids.get(address);
+            if (id == null) {
+                id = addresses.size();
+                addresses.add(address);
+                ids.put(address, id);
+            }
+            return id;
+        }
+
+        synchronized PublicKey get(int id) {
+            return addresses.get(id);
+        }
+    }
+
+    // overlay value for a UTXO a view doesn't have
+    private static final Transaction.Output REMOVED = new Transaction.Output(0, null);
+
+    private ByteBuffer table;
+    private int capacity;
+    private int size;
+    private AddressTable addresses;
+    // the views made by copy() that are still reachable
+    private ArrayList<WeakReference<View>> views = new ArrayList<WeakReference<View>>();
+
+    public OffHeapUTXOStore() {
+        this(1024);
+    }
+
+    /** Creates a store with room for about {@code expected} UTXOs before it has to grow */
+    public OffHeapUTXOStore(int expected) {
+        int cap = 16;
+        while (cap < expected * 2 && cap < MAX_CAPACITY)
+            cap <<= 1;
+        this.capacity = cap;
+        this.table = ByteBuffer.allocateDirect(cap * SLOT_BYTES);
+        this.addresses = new AddressTable();
+    }
+
+    public synchronized Transaction.Output get(UTXO utxo) {
+        int slot = find(utxo.getHash(), utxo.getIndex());
+        if (slot < 0)
+            return null;
+        return outputAt(slot);
+    }
+
+    public synchronized void put(UTXO utxo, Transaction.Output txOut) {
+        Hash txHash = utxo.getHash();
+        if (txHash.length() != HASH_BYTES)
+            throw new IllegalArgumentException("transaction hashes must be " + HASH_BYTES + " bytes");
+        preserve(utxo);
+        int slot = find(txHash, utxo.getIndex());
+        if (slot < 0) {
+            if ((size + 1) * 4L > capacity * 3L) {
+                resize(capacity * 2);
+                slot = find(txHash, utxo.getIndex());
+            }
+            slot = -slot - 1;
+            int base = slot * SLOT_BYTES;
+            for (int i = 0; i < HASH_BYTES / 8; i++)
+                table.putLong(base + 8 * i, txHash.word(i));
+            table.putInt(base + INDEX_OFFSET, utxo.getIndex());
+            size++;
+        }
+        int base = slot * SLOT_BYTES;
+        table.putInt(base + ADDRESS_OFFSET, addresses.idOf(txOut.address) + 1);
+        table.putDouble(base + VALUE_OFFSET, txOut.value);
+    }
+
+    public synchronized void remove(UTXO utxo) {
+        int slot = find(utxo.getHash(), utxo.getIndex());
+        if (slot < 0)
+            return;
+        preserve(utxo);
+        removeSlot(slot);
+    }
+
+    public synchronized Transaction.Output getAndRemove(UTXO utxo) {
+        int slot = find(utxo.getHash(), utxo.getIndex());
+        if (slot < 0)
+            return null;
+        Transaction.Output txOut = outputAt(slot);
+        preserve(utxo);
+        removeSlot(slot);
+        return txOut;
+    }
+
+    // called with the lock held
+    private void removeSlot(int slot) {
+        // backward-shift deletion: pull later entries of the probe run into the hole
+        int mask = capacity - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (isEmpty(next))
+                break;
+            int home = homeSlot(next * SLOT_BYTES);
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        table.putInt(hole * SLOT_BYTES + ADDRESS_OFFSET, 0);
+        size--;
+    }
+
+    public synchronized boolean containsKey(UTXO utxo) {
+        return find(utxo.getHash(), utxo.getIndex()) >= 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** @return a view of the store as it is now; see the class comment */
+    public synchronized UTXOStore copy() {
+        return register(new View(this, PersistentHashMap.<UTXO, Transaction.Output> empty(), size));
+    }
+
+    /** @return the number of views made by {@link #copy()} that are still reachable */
+    public synchronized int getViewCount() {
+        views.removeIf(ref -> ref.get() == null);
+        return views.size();
+    }
+
+    public synchronized void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        for (int slot = 0; slot < capacity; slot++)
+            if (!isEmpty(slot))
+                action.accept(utxoAt(slot), outputAt(slot));
+    }
+
+    /**
+     * Splits by slot ranges. The entries have to be decoded from the table, so each one is new.
+     * Flushing a view changes the table, so no view may be flushed while this is in use.
+     */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return new SlotSpliterator(0, capacity, null);
+    }
+
+    private class SlotSpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+        private int slot;
+        private final int end;
+        // entries a view overrides, which are skipped; null for the table itself
+        private final PersistentHashMap<UTXO, Transaction.Output> skip;
+
+        private SlotSpliterator(int slot, int end, PersistentHashMap<UTXO, Transaction.Output> skip) {
+            this.slot = slot;
+            this.end = end;
+            this.skip = skip;
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            while (slot < end) {
+                int s = slot++;
+                if (isEmpty(s))
+                    continue;
+                UTXO ut = utxoAt(s);
+                if (skip != null && skip.containsKey(ut))
+                    continue;
+                action.accept(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(ut, outputAt(s)));
+                return true;
+            }
+            return false;
+        }
+
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            if (end - slot < 1024)
+                return null;
+            int mid = (slot + end) >>> 1;
+            SlotSpliterator prefix = new SlotSpliterator(slot, mid, skip);
+            slot = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return (long) (end - slot) * size / capacity;
+        }
+
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+
+    /**
+     * A copy made by {@link OffHeapUTXOStore#copy}: its own changes, and what the table changed
+     * since, in an overlay over the table. Every method holds the table's lock.
+     */
+    private static class View implements UTXOStore {
+        private final OffHeapUTXOStore base;
+        private PersistentHashMap<UTXO, Transaction.Output> overlay;
+        private int size;
+
+        private View(OffHeapUTXOStore base, PersistentHashMap<UTXO, Transaction.Output> overlay, int size) {
+            this.base = base;
+            this.overlay = overlay;
+            this.size = size;
+        }
+
+        public Transaction.Output get(UTXO utxo) {
+            synchronized (base) {
+                Transaction.Output op = overlay.get(utxo);
+                if (op != null)
+                    return op == REMOVED ? null : op;
+                return base.get(utxo);
+            }
+        }
+
+        public void put(UTXO utxo, Transaction.Output txOut) {
+            if (utxo.getHash().length() != HASH_BYTES)
+                throw new IllegalArgumentException("transaction hashes must be " + HASH_BYTES + " bytes");
+            synchronized (base) {
+                if (!containsKey(utxo))
+                    size++;
+                overlay = overlay.plus(utxo, txOut);
+            }
+        }
+
+        public void remove(UTXO utxo) {
+            synchronized (base) {
+                if (!containsKey(utxo))
+                    return;
+                size--;
+                overlay = overlay.plus(utxo, REMOVED);
+            }
+        }
+
+        public boolean containsKey(UTXO utxo) {
+            synchronized (base) {
+                Transaction.Output op = overlay.get(utxo);
+                if (op != null)
+                    return op != REMOVED;
+                return base.containsKey(utxo);
+            }
+        }
+
+        public int size() {
+            synchronized (base) {
+                return size;
+            }
+        }
+
+        public UTXOStore copy() {
+            synchronized (base) {
+                return base.register(new View(base, overlay, size));
+            }
+        }
+
+        public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+            synchronized (base) {
+                base.forEach((ut, op) -> {
+                    if (!overlay.containsKey(ut))
+                        action.accept(ut, op);
+                });
+                overlay.forEach((ut, op) -> {
+                    if (op != REMOVED)
+                        action.accept(ut, op);
+                });
+            }
+        }
+
+        /**
+         * The overlay's own entries, then the table's slots the overlay doesn't override; as for
+         * the table, no view may be flushed while this is in use
+         */
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+            synchronized (base) {
+                ArrayList<Map.Entry<UTXO, Transaction.Output>> own = new ArrayList<Map.Entry<UTXO, Transaction.Output>>();
+                overlay.forEach((ut, op) -> {
+                    if (op != REMOVED)
+                        own.add(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(ut, op));
+                });
+                return new ViewSpliterator(base.new SlotSpliterator(0, base.capacity, overlay), own.spliterator());
+            }
+        }
+
+        /**
+         * Makes the table hold this view's contents and empties the overlay. Other views are
+         * unaffected, since the table saves its old entries into them first.
+         */
+        public void flush() {
+            synchronized (base) {
+                // this view overrides every key it writes, so the table saves nothing into it
+                overlay.forEach((ut, op) -> {
+                    if (op == REMOVED)
+                        base.remove(ut);
+                    else
+                        base.put(ut, op);
+                });
+                overlay = PersistentHashMap.empty();
+            }
+        }
+    }
+
+    // a view's overlay entries, then the table's slots that the overlay doesn't override
+    private static class ViewSpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+        private final SlotSpliterator slots;
+        private Spliterator<Map.Entry<UTXO, Transaction.Output>> own;
+
+        private ViewSpliterator(SlotSpliterator slots, Spliterator<Map.Entry<UTXO, Transaction.Output>> own) {
+            this.slots = slots;
+            this.own = own;
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            if (own != null) {
+                if (own.tryAdvance(action))
+                    return true;
+                own = null;
+            }
+            return slots.tryAdvance(action);
+        }
+
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            if (own != null) {
+                Spliterator<Map.Entry<UTXO, Transaction.Output>> prefix = own;
+                own = null;
+                return prefix;
+            }
+            return slots.trySplit();
+        }
+
+        public long estimateSize() {
+            return slots.estimateSize() + (own == null ? 0 : own.estimateSize());
+        }
+
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+
+    // called with the lock held
+    private View register(View view) {
+        views.removeIf(ref -> ref.get() == null);
+        views.add(new WeakReference<View>(view));
+        return view;
+    }
+
+    // saves the current entry for utxo, about to change, into the views that don't override it
+    private void preserve(UTXO utxo) {
+        if (views.isEmpty())
+            return;
+        Transaction.Output old = null;
+        boolean looked = false;
+        Iterator<WeakReference<View>> it = views.iterator();
+        while (it.hasNext()) {
+            View view = it.next().get();
+            if (view == null) {
+                it.remove();
+                continue;
+            }
+            if (view.overlay.containsKey(utxo))
+                continue;
+            if (!looked) {
+                old = get(utxo);
+                looked = true;
+            }
+            view.overlay = view.overlay.plus(utxo, old == null ? REMOVED : old);
+        }
+    }
+
+    /** @return the slot holding the key, or (-insertion point - 1) if it isn't in the table */
+    private int find(Hash txHash, int index) {
+        if (txHash.length() != HASH_BYTES)
+            return -1 - capacity;
+        int mask = capacity - 1;
+        int slot = (int) mix(txHash.word(0), index) & mask;
+        while (!isEmpty(slot)) {
+            if (matches(slot * SLOT_BYTES, txHash, index))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    private boolean matches(int base, Hash txHash, int index) {
+        if (table.getInt(base + INDEX_OFFSET) != index)
+            return false;
+        for (int i = 0; i < HASH_BYTES / 8; i++)
+            if (table.getLong(base + 8 * i) != txHash.word(i))
+                return false;
+        return true;
+    }
+
+    private UTXO utxoAt(int slot) {
+        int base = slot * SLOT_BYTES;
+        Hash txHash = Hash.of(table.getLong(base), table.getLong(base + 8), table.getLong(base + 16),
+                table.getLong(base + 24));
+        return new UTXO(txHash, table.getInt(base + INDEX_OFFSET));
+    }
+
+    private Transaction.Output outputAt(int slot) {
+        int base = slot * SLOT_BYTES;
+        PublicKey address = addresses.get(table.getInt(base + ADDRESS_OFFSET) - 1);
+        return new Transaction.Output(table.getDouble(base + VALUE_OFFSET), address);
+    }
+
+    private boolean isEmpty(int slot) {
+        return table.getInt(slot * SLOT_BYTES + ADDRESS_OFFSET) == 0;
+    }
+
+    private int homeSlot(int base) {
+        return (int) mix(table.getLong(base), table.getInt(base + INDEX_OFFSET)) & (capacity - 1);
+    }
+
+    private void copySlot(int from, int to) {
+        int src = from * SLOT_BYTES;
+        int dst = to * SLOT_BYTES;
+        for (int i = 0; i < SLOT_BYTES; i += 4)
+            table.putInt(dst + i, table.getInt(src + i));
+    }
+
+    private void resize(int newCapacity) {
+        if (newCapacity > MAX_CAPACITY)
+            throw new IllegalStateException("off-heap UTXO table is full");
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        table = ByteBuffer.allocateDirect(newCapacity * SLOT_BYTES);
+        capacity = newCapacity;
+        int mask = newCapacity - 1;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int src = slot * SLOT_BYTES;
+            if (old.getInt(src + ADDRESS_OFFSET) == 0)
+                continue;
+            int to = (int) mix(old.getLong(src), old.getInt(src + INDEX_OFFSET)) & mask;
+            while (!isEmpty(to))
+                to = (to + 1) & mask;
+            int dst = to * SLOT_BYTES;
+            for (int i = 0; i < SLOT_BYTES; i += 4)
+                table.putInt(dst + i, old.getInt(src + i));
+        }
+    }
+
+    // tx hashes are SHA-256 digests, so their first 8 bytes are already well spread
+    private static long mix(long hashPrefix, int index) {
+        long h = hashPrefix ^ (index * 0x9E3779B97F4A7C15L);
+        return h ^ (h >>> 29) ^ (h >>> 47);
+    }
+}
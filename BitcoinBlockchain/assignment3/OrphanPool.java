@@ -0,0 +1,102 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Blocks whose parent hasn't arrived yet, keyed by the missing parent hash so they can be
+ * connected as soon as it does. The pool is bounded by block count and by serialized size; when
+ * either limit is hit the oldest orphans are evicted first.
+ */
+public class OrphanPool {
+
+    public static final int DEFAULT_MAX_BLOCKS = 100;
+    public static final long DEFAULT_MAX_BYTES = 4L << 20;
+
+    private int maxBlocks;
+    private long maxBytes;
+    // every orphan by its own hash, oldest first
+    private LinkedHashMap<Hash, Block> byHash;
+    // orphan hashes by the parent they are waiting for
+    private HashMap<Hash, ArrayList<Hash>> byParent;
+    private long bytes;
+
+    public OrphanPool() {
+        this(DEFAULT_MAX_BLOCKS, DEFAULT_MAX_BYTES);
+    }
+
+    public OrphanPool(int maxBlocks, long maxBytes) {
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+        this.byHash = new LinkedHashMap<Hash, Block>();
+        this.byParent = new HashMap<Hash, ArrayList<Hash>>();
+    }
+
+    /**
+     * Keeps {@code block} until its parent shows up, evicting the oldest orphans if needed.
+     *
+     * @return false if the block was already pooled or is too big to pool at all
+     */
+    public boolean add(Block block) {
+        Hash hash = Hash.of(block.getHash());
+        long size = sizeOf(block);
+        if (this.byHash.containsKey(hash) || size > this.maxBytes || this.maxBlocks <= 0)
+            return false;
+        while (this.byHash.size() >= this.maxBlocks || this.bytes + size > this.maxBytes)
+            evictOldest();
+        Hash parent = Hash.of(block.getPrevBlockHash());
+        ArrayList<Hash> waiting = this.byParent.get(parent);
+        if (waiting == null) {
+            waiting = new ArrayList<Hash>(1);
+            this.byParent.put(parent, waiting);
+        }
+        waiting.add(hash);
+        this.byHash.put(hash, block);
+        this.bytes += size;
+        return true;
+    }
+
+    /** Removes and returns the orphans waiting for block {@code parentHash}, oldest first */
+    public ArrayList<Block> takeChildren(Hash parentHash) {
+        ArrayList<Block> children = new ArrayList<Block>();
+        ArrayList<Hash> waiting = this.byParent.remove(parentHash);
+        if (waiting == null)
+            return children;
+        for (Hash hash : waiting) {
+            Block block = this.byHash.remove(hash);
+            this.bytes -= sizeOf(block);
+            children.add(block);
+        }
+        return children;
+    }
+
+    public boolean contains(Hash hash) {
+        return this.byHash.containsKey(hash);
+    }
+
+    /** @return the number of pooled orphans */
+    public int size() {
+        return this.byHash.size();
+    }
+
+    /** @return the serialized size of the pooled orphans, in bytes */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    private void evictOldest() {
+        Iterator<Block> it = this.byHash.values().iterator();
+        Block oldest = it.next();
+        it.remove();
+        this.bytes -= sizeOf(oldest);
+        Hash parent = Hash.of(oldest.getPrevBlockHash());
+        ArrayList<Hash> waiting = this.byParent.get(parent);
+        waiting.remove(Hash.of(oldest.getHash()));
+        if (waiting.isEmpty())
+            this.byParent.remove(parent);
+    }
+
+    private static long sizeOf(Block block) {
+        return TxEncoder.rawBlockSize(block) + TxEncoder.rawTxSize(block.getCoinbase());
+    }
+}
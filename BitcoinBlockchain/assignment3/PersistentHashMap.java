@@ -0,0 +1,386 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * An immutable hash array mapped trie. {@link #plus} and {@link #minus} return a new map that
+ * shares every node with this one except the ones on the path to the changed key, so keeping
+ * many versions of a large map around only costs the differences between them.
+ *
+ * Each level of the trie consumes 5 bits of the key's hash. Branch nodes keep a 32-bit bitmap of
+ * which children are present and a compact array of just those children. Keys whose full hashes
+ * collide end up together in a collision node.
+ */
+final class PersistentHashMap<K, V> {
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<Object, Object>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null)
+            return null;
+        return (V) root.get(hash(key), 0, key);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /** @return a map with {@code key} mapped to {@code value}; values must not be null */
+    public PersistentHashMap<K, V> plus(K key, V value) {
+        int[] added = new int[1];
+        Node newRoot;
+        if (root == null) {
+            newRoot = new Leaf(hash(key), key, value);
+            added[0] = 1;
+        } else {
+            newRoot = root.put(hash(key), 0, key, value, added);
+        }
+        if (newRoot == root)
+            return this;
+        return new PersistentHashMap<K, V>(newRoot, size + added[0]);
+    }
+
+    /** @return a map without {@code key} */
+    public PersistentHashMap<K, V> minus(Object key) {
+        if (root == null)
+            return this;
+        Node newRoot = root.remove(hash(key), 0, key);
+        if (newRoot == root)
+            return this;
+        return new PersistentHashMap<K, V>(newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null)
+            root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    /**
+     * @return a spliterator over this version of the map. The entries are the trie's own leaves,
+     *         so iterating allocates nothing per entry, and splitting hands off whole subtries.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        Node[] nodes = root == null ? new Node[0] : new Node[] { root };
+        return (Spliterator) new TrieSpliterator(nodes, 0, nodes.length, size);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    private static abstract class Node {
+        abstract Object get(int hash, int shift, Object key);
+
+        /** {@code added[0]} is set to 1 if the key was not in the trie before */
+        abstract Node put(int hash, int shift, Object key, Object value, int[] added);
+
+        /** @return the node without {@code key}, {@code this} if it wasn't there, or null if now empty */
+        abstract Node remove(int hash, int shift, Object key);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /** A single key/value pair. Leaves can sit at any depth since they carry their full hash. */
+    private static final class Leaf extends Node implements Map.Entry<Object, Object> {
+        final int hash;
+        final Object key;
+        final Object value;
+
+        Leaf(int hash, Object key, Object value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        Object get(int hash, int shift, Object key) {
+            if (this.hash == hash && this.key.equals(key))
+                return value;
+            return null;
+        }
+
+        Node put(int hash, int shift, Object key, Object value, int[] added) {
+            if (this.hash == hash && this.key.equals(key))
+                return this.value == value ? this : new Leaf(hash, key, value);
+            added[0] = 1;
+            Leaf other = new Leaf(hash, key, value);
+            if (this.hash == hash)
+                return new Collision(hash, new Leaf[] { this, other });
+            return Branch.pair(shift, this, other);
+        }
+
+        Node remove(int hash, int shift, Object key) {
+            if (this.hash == hash && this.key.equals(key))
+                return null;
+            return this;
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            action.accept(key, value);
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class Branch extends Node {
+        final int bitmap;
+        final Node[] children;
+
+        Branch(int bitmap, Node[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        /** a branch holding two leaves with different hashes, nesting as deep as needed */
+        static Node pair(int shift, Leaf a, Leaf b) {
+            int bitA = bit(a.hash, shift);
+            int bitB = bit(b.hash, shift);
+            if (bitA == bitB)
+                return new Branch(bitA, new Node[] { pair(shift + 5, a, b) });
+            if (Integer.compareUnsigned(bitA, bitB) < 0)
+                return new Branch(bitA | bitB, new Node[] { a, b });
+            return new Branch(bitA | bitB, new Node[] { b, a });
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object get(int hash, int shift, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return null;
+            return children[index(bit)].get(hash, shift + 5, key);
+        }
+
+        Node put(int hash, int shift, Object key, Object value, int[] added) {
+            int bit = bit(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, idx);
+                newChildren[idx] = new Leaf(hash, key, value);
+                System.arraycopy(children, idx, newChildren, idx + 1, children.length - idx);
+                added[0] = 1;
+                return new Branch(bitmap | bit, newChildren);
+            }
+            Node child = children[idx];
+            Node newChild = child.put(hash, shift + 5, key, value, added);
+            if (newChild == child)
+                return this;
+            Node[] newChildren = children.clone();
+            newChildren[idx] = newChild;
+            return new Branch(bitmap, newChildren);
+        }
+
+        Node remove(int hash, int shift, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Node child = children[idx];
+            Node newChild = child.remove(hash, shift + 5, key);
+            if (newChild == child)
+                return this;
+            if (newChild != null) {
+                // a branch left with a single leaf/collision can be replaced by it
+                if (children.length == 1 && !(newChild instanceof Branch))
+                    return newChild;
+                Node[] newChildren = children.clone();
+                newChildren[idx] = newChild;
+                return new Branch(bitmap, newChildren);
+            }
+            if (children.length == 1)
+                return null;
+            if (children.length == 2 && !(children[1 - idx] instanceof Branch))
+                return children[1 - idx];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(children, 0, newChildren, 0, idx);
+            System.arraycopy(children, idx + 1, newChildren, idx, children.length - idx - 1);
+            return new Branch(bitmap ^ bit, newChildren);
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Node child : children)
+                child.forEach(action);
+        }
+    }
+
+    /** Leaves whose 32-bit hashes are identical */
+    private static final class Collision extends Node {
+        final int hash;
+        final Leaf[] leaves;
+
+        Collision(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+
+        Object get(int hash, int shift, Object key) {
+            if (this.hash != hash)
+                return null;
+            for (Leaf leaf : leaves)
+                if (leaf.key.equals(key))
+                    return leaf.value;
+            return null;
+        }
+
+        Node put(int hash, int shift, Object key, Object value, int[] added) {
+            if (this.hash != hash) {
+                Node wrapper = new Branch(bit(this.hash, shift), new Node[] { this });
+                return wrapper.put(hash, shift, key, value, added);
+            }
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(key)) {
+                    if (leaves[i].value == value)
+                        return this;
+                    Leaf[] newLeaves = leaves.clone();
+                    newLeaves[i] = new Leaf(hash, key, value);
+                    return new Collision(hash, newLeaves);
+                }
+            }
+            Leaf[] newLeaves = new Leaf[leaves.length + 1];
+            System.arraycopy(leaves, 0, newLeaves, 0, leaves.length);
+            newLeaves[leaves.length] = new Leaf(hash, key, value);
+            added[0] = 1;
+            return new Collision(hash, newLeaves);
+        }
+
+        Node remove(int hash, int shift, Object key) {
+            if (this.hash != hash)
+                return this;
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(key)) {
+                    if (leaves.length == 2)
+                        return leaves[1 - i];
+                    Leaf[] newLeaves = new Leaf[leaves.length - 1];
+                    System.arraycopy(leaves, 0, newLeaves, 0, i);
+                    System.arraycopy(leaves, i + 1, newLeaves, i, leaves.length - i - 1);
+                    return new Collision(hash, newLeaves);
+                }
+            }
+            return this;
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Leaf leaf : leaves)
+                leaf.forEach(action);
+        }
+    }
+
+    /**
+     * Walks the nodes in {@code nodes[lo, hi)} depth-first. Splitting halves that range; once it
+     * is down to a single branch, the range becomes that branch's children.
+     */
+    private static final class TrieSpliterator implements Spliterator<Leaf> {
+        private Node[] nodes;
+        private int lo;
+        private int hi;
+        private long est;
+        // the rest of the node taken from the range that is being walked
+        private final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+
+        TrieSpliterator(Node[] nodes, int lo, int hi, long est) {
+            this.nodes = nodes;
+            this.lo = lo;
+            this.hi = hi;
+            this.est = est;
+        }
+
+        public boolean tryAdvance(Consumer<? super Leaf> action) {
+            while (true) {
+                if (stack.isEmpty()) {
+                    if (lo >= hi)
+                        return false;
+                    stack.push(nodes[lo++]);
+                }
+                Node node = stack.pop();
+                if (node instanceof Leaf) {
+                    action.accept((Leaf) node);
+                    return true;
+                }
+                Node[] children = node instanceof Branch ? ((Branch) node).children : ((Collision) node).leaves;
+                for (int i = children.length - 1; i >= 0; i--)
+                    stack.push(children[i]);
+            }
+        }
+
+        public void forEachRemaining(Consumer<? super Leaf> action) {
+            while (!stack.isEmpty())
+                forEachLeaf(stack.pop(), action);
+            while (lo < hi)
+                forEachLeaf(nodes[lo++], action);
+        }
+
+        private static void forEachLeaf(Node node, Consumer<? super Leaf> action) {
+            if (node instanceof Leaf) {
+                action.accept((Leaf) node);
+            } else {
+                Node[] children = node instanceof Branch ? ((Branch) node).children : ((Collision) node).leaves;
+                for (Node child : children)
+                    forEachLeaf(child, action);
+            }
+        }
+
+        public Spliterator<Leaf> trySplit() {
+            if (!stack.isEmpty())
+                return null;
+            while (hi - lo == 1 && nodes[lo] instanceof Branch) {
+                nodes = ((Branch) nodes[lo]).children;
+                lo = 0;
+                hi = nodes.length;
+            }
+            if (hi - lo < 2)
+                return null;
+            int mid = (lo + hi) >>> 1;
+            est >>>= 1;
+            TrieSpliterator prefix = new TrieSpliterator(nodes, lo, mid, est);
+            lo = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return est;
+        }
+
+        public int characteristics() {
+            return IMMUTABLE | DISTINCT | NONNULL;
+        }
+    }
+}
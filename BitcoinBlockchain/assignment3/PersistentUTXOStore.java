@@ -0,0 +1,54 @@
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link UTXOStore} on top of a {@link PersistentHashMap}. {@link #copy()} is O(1) since the
+ * copy just shares the current trie, and each put/remove only path-copies the nodes it touches.
+ * This is what lets every block in {@link BlockChain} keep its own pool cheaply.
+ */
+public class PersistentUTXOStore implements UTXOStore {
+
+    private PersistentHashMap<UTXO, Transaction.Output> H;
+
+    public PersistentUTXOStore() {
+        H = PersistentHashMap.empty();
+    }
+
+    private PersistentUTXOStore(PersistentHashMap<UTXO, Transaction.Output> map) {
+        H = map;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H = H.plus(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        H = H.minus(utxo);
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    public UTXOStore copy() {
+        return new PersistentUTXOStore(H);
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        H.forEach(action);
+    }
+
+    /** The spliterator walks the trie as of this call, so the store may change while it is used */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return H.spliterator();
+    }
+}
@@ -0,0 +1,57 @@
+// Times ingesting a long pre-generated chain block by block with addBlock, and in one go with
+// addBlocksPipelined, which verifies signatures for the next blocks while the current one is
+// committed. The signature cache is cleared before each run so neither starts warm, and the
+// two runs must accept the same blocks and end on the same tip.
+//
+// usage: java PipelineBenchmark [numBlocks] [txsPerBlock]
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class PipelineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numBlocks = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int txsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair[] keys = new KeyPair[32];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = gen.generateKeyPair();
+
+        Block genesis = new Block(null, keys[0].getPublic());
+        genesis.finalize();
+        ArrayList<Block> blocks = UTXOStateBenchmark.generateChain(genesis, keys, numBlocks, txsPerBlock);
+        System.out.println("generated " + blocks.size() + " blocks");
+
+        for (boolean undoLog : new boolean[] { false, true }) {
+            String mode = undoLog ? "undo-log" : "snapshot";
+
+            SignatureCache.shared().clear();
+            long start = System.nanoTime();
+            BlockChain serial = new BlockChain(genesis, new PersistentUTXOStore(), undoLog);
+            boolean[] serialAdded = new boolean[blocks.size()];
+            for (int i = 0; i < blocks.size(); i++)
+                serialAdded[i] = serial.addBlock(blocks.get(i));
+            report(mode + " serial", System.nanoTime() - start, blocks.size());
+
+            SignatureCache.shared().clear();
+            start = System.nanoTime();
+            BlockChain pipelined = new BlockChain(genesis, new PersistentUTXOStore(), undoLog);
+            boolean[] pipelinedAdded = pipelined.addBlocksPipelined(blocks);
+            report(mode + " pipelined", System.nanoTime() - start, blocks.size());
+
+            if (!Arrays.equals(serialAdded, pipelinedAdded)
+                    || !Arrays.equals(serial.getMaxHeightBlock().getHash(), pipelined.getMaxHeightBlock().getHash()))
+                throw new IllegalStateException(mode + ": pipelined result differs from serial");
+        }
+    }
+
+    private static void report(String name, long elapsed, int blocks) {
+        System.out.printf("%-20s %8.1f ms total %8.3f ms/block %8.1f blocks/s%n", name, elapsed / 1e6,
+                elapsed / 1e6 / blocks, blocks / (elapsed / 1e9));
+    }
+}
@@ -0,0 +1,90 @@
+// Times signature checking for a transaction with many inputs, once by building
+// getRawDataToSign(i) for every input (re-encoding all outputs each time) and once through
+// TxEncoder.SigHashes, which encodes the outputs a single time and streams them into each
+// Signature. It also times just building the signed data, which is the part that changed.
+//
+// usage: java SigHashBenchmark [numInputs] [numOutputs] [rounds]
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+
+public class SigHashBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numInputs = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int numOutputs = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair owner = gen.generateKeyPair();
+        KeyPair payee = gen.generateKeyPair();
+
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        Transaction tx = new Transaction();
+        for (int i = 0; i < numInputs; i++)
+            tx.addInput(md.digest(Integer.toString(i).getBytes()), i);
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(1, payee.getPublic());
+        for (int i = 0; i < numInputs; i++) {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(owner.getPrivate());
+            sig.update(tx.getRawDataToSign(i));
+            tx.addSignature(sig.sign(), i);
+        }
+        tx.finalize();
+
+        // warm up both paths before timing
+        for (int r = 0; r < 5; r++) {
+            perInput(tx, owner);
+            shared(tx, owner);
+        }
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++)
+            perInput(tx, owner);
+        long perInput = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++)
+            shared(tx, owner);
+        long shared = System.nanoTime() - start;
+
+        long sink = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++)
+            for (int i = 0; i < numInputs; i++)
+                sink += tx.getRawDataToSign(i).length;
+        long encodePerInput = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            TxEncoder.SigHashes sigHashes = new TxEncoder.SigHashes(tx);
+            for (int i = 0; i < numInputs; i++)
+                sink += sigHashes.get(i).length;
+        }
+        long encodeShared = System.nanoTime() - start;
+
+        System.out.printf("%d inputs, %d outputs, %d rounds%n", numInputs, numOutputs, rounds);
+        System.out.printf("verify, getRawDataToSign per input  %8.3f ms/tx%n", perInput / 1e6 / rounds);
+        System.out.printf("verify, shared SigHashes            %8.3f ms/tx%n", shared / 1e6 / rounds);
+        System.out.printf("encode, getRawDataToSign per input  %8.3f ms/tx%n", encodePerInput / 1e6 / rounds);
+        System.out.printf("encode, shared SigHashes            %8.3f ms/tx (%d)%n", encodeShared / 1e6 / rounds,
+                sink % 10);
+    }
+
+    private static void perInput(Transaction tx, KeyPair owner) {
+        for (int i = 0; i < tx.numInputs(); i++)
+            if (!Crypto.verifySignature(owner.getPublic(), tx.getRawDataToSign(i), tx.getInput(i).signature))
+                throw new IllegalStateException("bad signature");
+    }
+
+    private static void shared(Transaction tx, KeyPair owner) {
+        TxEncoder.SigHashes sigHashes = new TxEncoder.SigHashes(tx);
+        for (int i = 0; i < tx.numInputs(); i++)
+            if (!Crypto.verifySignature(owner.getPublic(), sigHashes, i, tx.getInput(i).signature))
+                throw new IllegalStateException("bad signature");
+    }
+}
@@ -0,0 +1,145 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe set of input signatures that have already been verified, keyed by
+ * (SHA-256 of the signed data, public key, signature). The digest is always computed from the
+ * bytes the signature covers ({@link TxEncoder.SigHashes#digest}), never taken from the
+ * transaction's stored hash, so a transaction that copies another's hash and signatures but
+ * changes what they sign can't hit the other's entries.
+ *
+ * Only successful verifications are cached. When full, entries are evicted with the CLOCK
+ * algorithm: lookups set a reference bit and the hand skips (and clears) referenced entries.
+ *
+ * {@link TxHandler} checks {@link #shared()} before calling {@link Crypto}, so a tx verified when
+ * a block is created isn't verified again when the block is added or shows up on another fork.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final SignatureCache SHARED = new SignatureCache(DEFAULT_CAPACITY);
+
+    private static final class Key {
+        final byte[] signedDigest;
+        final PublicKey pubKey;
+        final byte[] signature;
+        final int hash;
+
+        Key(byte[] signedDigest, PublicKey pubKey, byte[] signature) {
+            this.signedDigest = signedDigest;
+            this.pubKey = pubKey;
+            this.signature = signature;
+            int h = Arrays.hashCode(signedDigest);
+            h = h * 31 + Arrays.hashCode(signature);
+            this.hash = h;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key k = (Key) other;
+            return hash == k.hash && Arrays.equals(signedDigest, k.signedDigest)
+                    && Arrays.equals(signature, k.signature) && pubKey.equals(k.pubKey);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Integer> slots;
+    private final Key[] ring;
+    private final AtomicIntegerArray referenced;
+    // guarded by this
+    private int hand;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean enabled = true;
+
+    public SignatureCache(int capacity) {
+        this.slots = new ConcurrentHashMap<Key, Integer>(capacity * 2);
+        this.ring = new Key[capacity];
+        this.referenced = new AtomicIntegerArray(capacity);
+    }
+
+    /** @return the cache shared by every {@link TxHandler} */
+    public static SignatureCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return true if {@code signature} already verified under {@code pubKey} over data whose
+     *         SHA-256 is {@code signedDigest}
+     */
+    public boolean contains(byte[] signedDigest, PublicKey pubKey, byte[] signature) {
+        if (!enabled)
+            return false;
+        Integer slot = slots.get(new Key(signedDigest, pubKey, signature));
+        if (slot == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        referenced.set(slot, 1);
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records that the signature verified; only call this after a successful verification, with
+     * {@code signedDigest} computed from the data that was verified
+     */
+    public void add(byte[] signedDigest, PublicKey pubKey, byte[] signature) {
+        if (!enabled)
+            return;
+        Key key = new Key(signedDigest.clone(), pubKey, signature == null ? null : signature.clone());
+        synchronized (this) {
+            if (slots.containsKey(key))
+                return;
+            // advance the hand past referenced entries, giving each a second chance
+            while (ring[hand] != null && referenced.get(hand) != 0) {
+                referenced.set(hand, 0);
+                hand = (hand + 1) % ring.length;
+            }
+            if (ring[hand] != null)
+                slots.remove(ring[hand]);
+            ring[hand] = key;
+            referenced.set(hand, 0);
+            slots.put(key, hand);
+            hand = (hand + 1) % ring.length;
+        }
+    }
+
+    /** Turns the cache on or off. While off every signature is verified, e.g. for audits. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    public synchronized void clear() {
+        slots.clear();
+        Arrays.fill(ring, null);
+        for (int i = 0; i < ring.length; i++)
+            referenced.set(i, 0);
+        hand = 0;
+    }
+}
@@ -0,0 +1,79 @@
+// Regression check for the shared SignatureCache: a transaction that copies an honest
+// transaction's hash and signature but pays the output to someone else must be rejected
+// whether or not the honest one was verified (and cached) first, both by isValidTx and when it
+// is put in a block. Exits with status 1 on failure.
+//
+// usage: java SignatureCacheCheck
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+
+public class SignatureCacheCheck {
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair owner = gen.generateKeyPair();
+        KeyPair payee = gen.generateKeyPair();
+        KeyPair thief = gen.generateKeyPair();
+
+        Block genesis = new Block(null, owner.getPublic());
+        genesis.finalize();
+        byte[] coin = genesis.getCoinbase().getHash();
+
+        Transaction honest = new Transaction();
+        honest.addInput(coin, 0);
+        honest.addOutput(Block.COINBASE, payee.getPublic());
+        honest.addSignature(sign(owner.getPrivate(), honest.getRawDataToSign(0)), 0);
+        honest.finalize();
+
+        // same input, hash and signature, but the output goes to the thief
+        Transaction forged = new Transaction();
+        forged.addInput(coin, 0);
+        forged.addOutput(Block.COINBASE, thief.getPublic());
+        forged.addSignature(honest.getInput(0).signature, 0);
+        forged.setHash(honest.getHash());
+
+        boolean ok = true;
+        for (boolean cached : new boolean[] { false, true }) {
+            SignatureCache.shared().clear();
+            SignatureCache.shared().setEnabled(cached);
+            BlockChain chain = new BlockChain(genesis);
+            TxHandler handler = new TxHandler(chain.getMaxHeightUTXOPool());
+            if (!handler.isValidTx(honest)) {
+                System.out.println("cache " + (cached ? "on" : "off") + ": honest tx rejected");
+                ok = false;
+            }
+            if (handler.isValidTx(forged)) {
+                System.out.println("cache " + (cached ? "on" : "off") + ": forged tx accepted by isValidTx");
+                ok = false;
+            }
+            Block block = new Block(genesis.getHash(), thief.getPublic());
+            block.addTransaction(forged);
+            block.finalize();
+            chain.addBlock(block);
+            double stolen = 0;
+            UTXOPool tip = chain.getMaxHeightUTXOPool();
+            for (UTXO ut : tip.getUTXOs(thief.getPublic()))
+                if (!ut.equals(new UTXO(block.getCoinbase().getHash(), 0)))
+                    stolen += tip.getTxOutput(ut).value;
+            if (stolen > 0) {
+                System.out.println("cache " + (cached ? "on" : "off") + ": block credited the thief " + stolen);
+                ok = false;
+            }
+        }
+        SignatureCache.shared().setEnabled(true);
+        System.out.println(ok ? "ok" : "FAILED");
+        if (!ok)
+            System.exit(1);
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] message) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(key);
+        sig.update(message);
+        return sig.sign();
+    }
+}
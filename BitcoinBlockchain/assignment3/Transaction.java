@@ -1,12 +1,20 @@
 
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.List;
+
+/**
+ * A transaction. Built the original way (add inputs, outputs and signatures, then
+ * {@link #finalize}) it stays mutable and everything derived from it is recomputed on use. Built
+ * with a {@link Builder} it is sealed: it can't be changed any more, and its hash, hash code and
+ * raw bytes are computed once and shared by everything that needs them. Since those are trusted
+ * without being recomputed, a sealed transaction hands out only copies of its hash, inputs and
+ * outputs, and throws on any attempt to modify it. Unsealed transactions hand out their own
+ * lists and objects, as they always have.
+ */
 public class Transaction {
 
     public class Input {
@@ -25,7 +33,15 @@ public class Transaction {
             outputIndex = index;
         }
 
+        // a copy with its own arrays, belonging to the transaction that makes it
+        private Input(Input in) {
+            prevTxHash = in.prevTxHash == null ? null : in.prevTxHash.clone();
+            outputIndex = in.outputIndex;
+            signature = in.signature == null ? null : in.signature.clone();
+        }
+
         public void addSignature(byte[] sig) {
+            checkMutable();
             if (sig == null)
                 signature = null;
             else
@@ -68,17 +84,44 @@ public class Transaction {
         }
     }
 
-    public class Output {
+    public static class Output {
         /** value in bitcoins of the output */
         public double value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /**
+         * encodings and {@link KeyRegistry} id of address, used by the raw tx, equals and
+         * hashCode; recomputed if address is reassigned
+         */
+        private TxEncoder.KeyBytes keyBytes;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        // a copy, sharing the encodings
+        private Output(Output op) {
+            value = op.value;
+            address = op.address;
+            keyBytes = op.keyBytes;
+        }
+
+        TxEncoder.KeyBytes keyBytes() {
+            TxEncoder.KeyBytes kb = keyBytes;
+            if (kb == null || kb.key != address) {
+                kb = KeyRegistry.global().internBytes(address);
+                keyBytes = kb;
+            }
+            return kb;
+        }
+
+        /** @return the {@link KeyRegistry} id of the address, or -1 if the registry is full */
+        public int getAddressId() {
+            return keyBytes().id;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -91,40 +134,87 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            return keyBytes().equals(op.keyBytes());
         }
 
         public int hashCode() {
             int hash = 1;
             hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            hash = hash * 31 + keyBytes().hashCode();
             return hash;
         }
     }
 
+    /**
+     * Assembles a sealed transaction: inputs and outputs are added, each input is signed over
+     * {@link #getRawDataToSign}, and {@link #build} computes everything derived from it once.
+     */
+    public static class Builder {
+        private Transaction tx = new Transaction();
+
+        public Builder addInput(byte[] prevTxHash, int outputIndex) {
+            building().addInput(prevTxHash, outputIndex);
+            return this;
+        }
+
+        public Builder addOutput(double value, PublicKey address) {
+            building().addOutput(value, address);
+            return this;
+        }
+
+        /** @return the data input {@code index} signs; add every output before signing */
+        public byte[] getRawDataToSign(int index) {
+            return building().getRawDataToSign(index);
+        }
+
+        public Builder addSignature(byte[] signature, int index) {
+            building().addSignature(signature, index);
+            return this;
+        }
+
+        /** @return the sealed transaction; the builder can't be used afterwards */
+        public Transaction build() {
+            Transaction built = building();
+            this.tx = null;
+            built.seal();
+            return built;
+        }
+
+        private Transaction building() {
+            if (tx == null)
+                throw new IllegalStateException("transaction already built");
+            return tx;
+        }
+    }
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
 
+    /** set by {@link Builder#build}, after which the fields below are fixed */
+    private boolean sealed;
+    private byte[] rawTx;
+    private Hash hashKey;
+    private int hashCode;
+    private TxEncoder.SigHashes sigHashes;
+
     public Transaction() {
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
         coinbase = false;
     }
 
+    /** A mutable copy of {@code tx}, with its own inputs and outputs */
     public Transaction(Transaction tx) {
         hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs)
+            inputs.add(new Input(in));
+        outputs = new ArrayList<Output>(tx.outputs.size());
+        for (Output op : tx.outputs)
+            outputs.add(new Output(op));
         coinbase = false;
     }
 
@@ -142,20 +232,24 @@ public class Transaction {
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        checkMutable();
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
     }
 
     public void addOutput(double value, PublicKey address) {
+        checkMutable();
         Output op = new Output(value, address);
         outputs.add(op);
     }
 
     public void removeInput(int index) {
+        checkMutable();
         inputs.remove(index);
     }
 
     public void removeInput(UTXO ut) {
+        checkMutable();
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
@@ -168,37 +262,9 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        return TxEncoder.rawDataToSign(this, index);
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -206,46 +272,18 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
-        }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        if (sealed)
+            return rawTx.clone();
+        return TxEncoder.rawTx(this);
     }
 
+    /** Computes the hash. A sealed transaction already has it, so this does nothing */
     public void finalize() {
+        if (sealed)
+            return;
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
+            TxEncoder.digestRawTx(this, md);
             hash = md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
@@ -253,35 +291,105 @@ public class Transaction {
     }
 
     public void setHash(byte[] h) {
+        checkMutable();
         hash = h;
     }
 
+    /** @return the hash; a copy if the transaction is sealed */
     public byte[] getHash() {
+        if (sealed)
+            return hash.clone();
         return hash;
     }
 
+    /** @return the hash as a map key; a sealed transaction returns the same one every time */
+    public Hash getHashKey() {
+        if (sealed)
+            return hashKey;
+        return hash == null ? null : Hash.of(hash);
+    }
+
+    /** @return true if the transaction was built by a {@link Builder} and can't be changed */
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    /** @return the raw bytes of a sealed transaction, shared and not to be modified, or null */
+    byte[] sealedRawTx() {
+        return rawTx;
+    }
+
+    /** @return the data each input signs; shared if the transaction is sealed */
+    TxEncoder.SigHashes sigHashes() {
+        if (!sealed)
+            return new TxEncoder.SigHashes(this);
+        TxEncoder.SigHashes sh = sigHashes;
+        if (sh == null) {
+            sh = new TxEncoder.SigHashes(this);
+            sigHashes = sh;
+        }
+        return sh;
+    }
+
+    /** @return the inputs; a sealed transaction returns a new list of copies of them */
     public ArrayList<Input> getInputs() {
-        return inputs;
+        if (!sealed)
+            return inputs;
+        ArrayList<Input> copies = new ArrayList<Input>(inputs.size());
+        for (Input in : inputs)
+            copies.add(new Input(in));
+        return copies;
     }
 
+    /** @return the outputs; a sealed transaction returns a new list of copies of them */
     public ArrayList<Output> getOutputs() {
-        return outputs;
+        if (!sealed)
+            return outputs;
+        ArrayList<Output> copies = new ArrayList<Output>(outputs.size());
+        for (Output op : outputs)
+            copies.add(new Output(op));
+        return copies;
     }
 
+    /** @return input {@code index}, or a copy of it if the transaction is sealed */
     public Input getInput(int index) {
         if (index < inputs.size()) {
-            return inputs.get(index);
+            return sealed ? new Input(inputs.get(index)) : inputs.get(index);
         }
         return null;
     }
 
+    /**
+     * @return the inputs themselves, for validation and encoding to read without copying; never
+     *         to be modified
+     */
+    List<Input> sharedInputs() {
+        return inputs;
+    }
+
+    /** @return input {@code index} itself, as for {@link #sharedInputs} */
+    Input sharedInput(int index) {
+        return inputs.get(index);
+    }
+
+    /** @return output {@code index}, or a copy of it if the transaction is sealed */
     public Output getOutput(int index) {
         if (index < outputs.size()) {
-            return outputs.get(index);
+            return sealed ? new Output(outputs.get(index)) : outputs.get(index);
         }
         return null;
     }
 
+    /** @return the outputs themselves, as for {@link #sharedInputs} */
+    List<Output> sharedOutputs() {
+        return outputs;
+    }
+
+    /** @return output {@code index} itself, as for {@link #sharedInputs} */
+    Output sharedOutput(int index) {
+        return outputs.get(index);
+    }
+
     public int numInputs() {
         return inputs.size();
     }
@@ -299,12 +407,14 @@ public class Transaction {
         }
 
         Transaction tx = (Transaction) other;
+        if (sealed && tx.sealed && hashCode != tx.hashCode)
+            return false;
         // inputs and outputs should be same
         if (tx.numInputs() != numInputs())
             return false;
 
         for (int i = 0; i < numInputs(); i++) {
-            if (!getInput(i).equals(tx.getInput(i)))
+            if (!inputs.get(i).equals(tx.inputs.get(i)))
                 return false;
         }
 
@@ -312,20 +422,44 @@ public class Transaction {
             return false;
 
         for (int i = 0; i < numOutputs(); i++) {
-            if (!getOutput(i).equals(tx.getOutput(i)))
+            if (!outputs.get(i).equals(tx.outputs.get(i)))
                 return false;
         }
         return true;
     }
 
     public int hashCode() {
+        if (sealed)
+            return hashCode;
+        return computeHashCode();
+    }
+
+    private int computeHashCode() {
         int hash = 1;
         for (int i = 0; i < numInputs(); i++) {
-            hash = hash * 31 + getInput(i).hashCode();
+            hash = hash * 31 + inputs.get(i).hashCode();
         }
         for (int i = 0; i < numOutputs(); i++) {
-            hash = hash * 31 + getOutput(i).hashCode();
+            hash = hash * 31 + outputs.get(i).hashCode();
         }
         return hash;
     }
+
+    // raw bytes, hash and hash code, once; the hash is over the raw bytes as in finalize
+    private void seal() {
+        rawTx = TxEncoder.rawTx(this);
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(rawTx);
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+        hashKey = Hash.of(hash);
+        hashCode = computeHashCode();
+        sealed = true;
+    }
+
+    private void checkMutable() {
+        if (sealed)
+            throw new IllegalStateException("transaction is sealed");
+    }
 }
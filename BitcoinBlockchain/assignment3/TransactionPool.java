@@ -1,38 +1,163 @@
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
+/**
+ * The transactions waiting to be mined. Both maps are {@link PersistentHashMap}s, so copying a
+ * pool is O(1) and the copies share everything except what changes afterwards.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    private PersistentHashMap<Hash, Transaction> H;
+    /**
+     * the pooled transactions spending each outpoint; more than one means they conflict. The
+     * lists are shared with copies, so they are replaced rather than changed
+     */
+    private PersistentHashMap<UTXO, ArrayList<Hash>> spentBy;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        H = PersistentHashMap.empty();
+        spentBy = PersistentHashMap.empty();
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        H = txPool.H;
+        spentBy = txPool.spentBy;
     }
 
-    public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+    /**
+     * Adds {@code tx} to the pool, even if it conflicts.
+     *
+     * @return true if {@code tx} spends an outpoint another pooled transaction already spends
+     */
+    public boolean addTransaction(Transaction tx) {
+        Hash hash = tx.getHashKey();
+        Transaction old = H.get(hash);
+        H = H.plus(hash, tx);
+        if (old != null)
+            unindex(hash, old);
+        boolean conflict = false;
+        for (Transaction.Input in : tx.sharedInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            ArrayList<Hash> spenders = spentBy.get(ut);
+            ArrayList<Hash> added;
+            if (spenders == null) {
+                added = new ArrayList<Hash>(1);
+            } else {
+                conflict = true;
+                added = new ArrayList<Hash>(spenders.size() + 1);
+                added.addAll(spenders);
+            }
+            added.add(hash);
+            spentBy = spentBy.plus(ut, added);
+        }
+        return conflict;
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Hash hash = Hash.of(txHash);
+        Transaction tx = H.get(hash);
+        if (tx != null) {
+            H = H.minus(hash);
+            unindex(hash, tx);
+        }
     }
 
     public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
+        Hash hash = Hash.of(txHash);
         return H.get(hash);
     }
 
     public ArrayList<Transaction> getTransactions() {
-        ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        ArrayList<Transaction> T = new ArrayList<Transaction>(H.size());
+        H.forEach((hash, tx) -> T.add(tx));
         return T;
     }
+
+    /** @return a pooled transaction spending {@code utxo}, or null if none does */
+    public Transaction getSpender(UTXO utxo) {
+        ArrayList<Hash> spenders = spentBy.get(utxo);
+        if (spenders == null || spenders.isEmpty())
+            return null;
+        return H.get(spenders.get(0));
+    }
+
+    /** @return every pooled transaction spending {@code utxo}; more than one means they conflict */
+    public ArrayList<Transaction> getSpenders(UTXO utxo) {
+        ArrayList<Hash> spenders = spentBy.get(utxo);
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(spenders == null ? 0 : spenders.size());
+        if (spenders != null)
+            for (Hash hash : spenders)
+                txs.add(H.get(hash));
+        return txs;
+    }
+
+    /** @return true if some other pooled transaction spends one of the outpoints {@code tx} spends */
+    public boolean conflicts(Transaction tx) {
+        Hash hash = tx.getHashKey();
+        for (Transaction.Input in : tx.sharedInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            ArrayList<Hash> spenders = spentBy.get(new UTXO(in.prevTxHash, in.outputIndex));
+            if (spenders == null)
+                continue;
+            for (Hash other : spenders)
+                if (!other.equals(hash))
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes every pooled transaction, other than {@code tx} itself, that spends an outpoint
+     * {@code tx} spends, together with the pooled transactions depending on them. Meant to be
+     * called for each transaction of a block that joins the max height chain.
+     */
+    public void removeConflicts(Transaction tx) {
+        Hash hash = tx.getHashKey();
+        ArrayList<Hash> doomed = new ArrayList<Hash>();
+        for (Transaction.Input in : tx.sharedInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            ArrayList<Hash> spenders = spentBy.get(new UTXO(in.prevTxHash, in.outputIndex));
+            if (spenders == null)
+                continue;
+            for (Hash other : spenders)
+                if (!other.equals(hash))
+                    doomed.add(other);
+        }
+        // then everything spending their outputs, and so on
+        while (!doomed.isEmpty()) {
+            Hash victim = doomed.remove(doomed.size() - 1);
+            Transaction vtx = H.get(victim);
+            if (vtx == null)
+                continue;
+            H = H.minus(victim);
+            unindex(victim, vtx);
+            for (int i = 0; i < vtx.numOutputs(); i++) {
+                ArrayList<Hash> spenders = spentBy.get(new UTXO(vtx.getHashKey(), i));
+                if (spenders != null)
+                    doomed.addAll(spenders);
+            }
+        }
+    }
+
+    private void unindex(Hash hash, Transaction tx) {
+        for (Transaction.Input in : tx.sharedInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            UTXO ut = new UTXO(in.prevTxHash, in.outputIndex);
+            ArrayList<Hash> spenders = spentBy.get(ut);
+            if (spenders == null || !spenders.contains(hash))
+                continue;
+            if (spenders.size() == 1) {
+                spentBy = spentBy.minus(ut);
+            } else {
+                ArrayList<Hash> rest = new ArrayList<Hash>(spenders);
+                rest.remove(hash);
+                spentBy = spentBy.plus(ut, rest);
+            }
+        }
+    }
 }
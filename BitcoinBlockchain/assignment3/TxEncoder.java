@@ -0,0 +1,310 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Encodes transactions and blocks into the same bytes as {@link Transaction#getRawTx()},
+ * {@link Transaction#getRawDataToSign(int)} and {@link Block#getRawBlock()}, without boxing
+ * every byte. Sizes are computed up front so callers can write into a buffer they reuse, and
+ * the {@code digest*} forms feed a {@code MessageDigest} piece by piece without building the
+ * whole array at all.
+ *
+ * Layout, all numbers big-endian:
+ *   input  = prevTxHash | outputIndex (4) | signature
+ *   output = value (8, IEEE 754) | exponent | modulus (two's complement, as BigInteger.toByteArray)
+ *   raw tx = inputs | outputs
+ *   data to sign for input i = prevTxHash_i | outputIndex_i | outputs
+ *   raw block = prevBlockHash | raw txs (the coinbase is not included)
+ */
+public class TxEncoder {
+
+    /**
+     * the exponent/modulus encodings of one address, cached on its {@link Transaction.Output}.
+     * Equal by content; the arrays and id are shared with the {@link KeyRegistry}'s copy
+     */
+    static final class KeyBytes {
+        final PublicKey key;
+        final byte[] exponent;
+        final byte[] modulus;
+        /** id from the {@link KeyRegistry}, or -1 if the key isn't interned */
+        final int id;
+        final int hash;
+
+        KeyBytes(PublicKey key) {
+            this(key, ((RSAPublicKey) key).getPublicExponent().toByteArray(),
+                    ((RSAPublicKey) key).getModulus().toByteArray(), -1);
+        }
+
+        /** {@code from} with id {@code id} */
+        KeyBytes(KeyBytes from, int id) {
+            this(from.key, from.exponent, from.modulus, id);
+        }
+
+        /** {@code interned}'s encoding for the equal key {@code key} */
+        KeyBytes(PublicKey key, KeyBytes interned) {
+            this(key, interned.exponent, interned.modulus, interned.id);
+        }
+
+        private KeyBytes(PublicKey key, byte[] exponent, byte[] modulus, int id) {
+            this.key = key;
+            this.exponent = exponent;
+            this.modulus = modulus;
+            this.id = id;
+            this.hash = 31 * Arrays.hashCode(exponent) + Arrays.hashCode(modulus);
+        }
+
+        /** @return the number of bytes the address takes in a raw tx */
+        int size() {
+            return exponent.length + modulus.length;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof KeyBytes))
+                return false;
+            KeyBytes kb = (KeyBytes) other;
+            if (id >= 0 && kb.id >= 0)
+                return id == kb.id;
+            return hash == kb.hash && Arrays.equals(exponent, kb.exponent) && Arrays.equals(modulus, kb.modulus);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The data to sign for every input of one transaction. The outputs, which are the bulk of it,
+     * are encoded once and shared by all inputs; {@link #update} feeds the rest straight into a
+     * {@code Signature}. Safe to share between threads once built.
+     */
+    public static final class SigHashes {
+        private final Transaction tx;
+        private final byte[] outputs;
+        // SHA-256 of each input's signed data, filled in on first use
+        private final AtomicReferenceArray<byte[]> digests;
+
+        public SigHashes(Transaction tx) {
+            this.tx = tx;
+            this.outputs = new byte[outputsSize(tx.sharedOutputs())];
+            writeOutputs(tx.sharedOutputs(), ByteBuffer.wrap(this.outputs));
+            this.digests = new AtomicReferenceArray<byte[]>(tx.numInputs());
+        }
+
+        /**
+         * @return the SHA-256 of the data input {@code index} signs, which is what a verified
+         *         signature is cached under in {@link SignatureCache}
+         */
+        public byte[] digest(int index) {
+            byte[] d = digests.get(index);
+            if (d == null) {
+                Transaction.Input in = tx.sharedInput(index);
+                MessageDigest md = SHA256.get();
+                digestInput(in, false, md, new byte[8]);
+                md.update(outputs);
+                d = md.digest();
+                digests.set(index, d);
+            }
+            return d;
+        }
+
+        /** Feeds the data input {@code index} signs to {@code sig} */
+        public void update(Signature sig, int index) throws SignatureException {
+            Transaction.Input in = tx.sharedInput(index);
+            byte[] outputIndex = new byte[4];
+            writeLong(outputIndex, in.outputIndex, 4);
+            if (in.prevTxHash != null)
+                sig.update(in.prevTxHash);
+            sig.update(outputIndex);
+            sig.update(outputs);
+        }
+
+        /** @return the same bytes as {@link Transaction#getRawDataToSign(int)} */
+        public byte[] get(int index) {
+            Transaction.Input in = tx.sharedInput(index);
+            ByteBuffer dst = ByteBuffer.allocate(inputSize(in, false) + outputs.length);
+            writeInput(in, false, dst);
+            dst.put(outputs);
+            return dst.array();
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private TxEncoder() {
+    }
+
+    /** @return the raw bytes of {@code tx} in a freshly allocated array of exactly the right size */
+    public static byte[] rawTx(Transaction tx) {
+        byte[] raw = new byte[rawTxSize(tx)];
+        writeRawTx(tx, ByteBuffer.wrap(raw));
+        return raw;
+    }
+
+    public static int rawTxSize(Transaction tx) {
+        if (tx.sealedRawTx() != null)
+            return tx.sealedRawTx().length;
+        int size = 0;
+        for (Transaction.Input in : tx.sharedInputs())
+            size += inputSize(in, true);
+        return size + outputsSize(tx.sharedOutputs());
+    }
+
+    /** Writes the raw bytes of {@code tx} at {@code dst}'s position, which needs {@link #rawTxSize} bytes */
+    public static void writeRawTx(Transaction tx, ByteBuffer dst) {
+        if (tx.sealedRawTx() != null) {
+            dst.put(tx.sealedRawTx());
+            return;
+        }
+        for (Transaction.Input in : tx.sharedInputs())
+            writeInput(in, true, dst);
+        writeOutputs(tx.sharedOutputs(), dst);
+    }
+
+    /** Feeds the raw bytes of {@code tx} to {@code md} */
+    public static void digestRawTx(Transaction tx, MessageDigest md) {
+        if (tx.sealedRawTx() != null) {
+            md.update(tx.sealedRawTx());
+            return;
+        }
+        byte[] scratch = new byte[8];
+        for (Transaction.Input in : tx.sharedInputs())
+            digestInput(in, true, md, scratch);
+        digestOutputs(tx.sharedOutputs(), md, scratch);
+    }
+
+    /** @return the data input {@code index} of {@code tx} signs, in an array of exactly the right size */
+    public static byte[] rawDataToSign(Transaction tx, int index) {
+        byte[] raw = new byte[rawDataToSignSize(tx, index)];
+        writeRawDataToSign(tx, index, ByteBuffer.wrap(raw));
+        return raw;
+    }
+
+    public static int rawDataToSignSize(Transaction tx, int index) {
+        return inputSize(tx.sharedInput(index), false) + outputsSize(tx.sharedOutputs());
+    }
+
+    public static void writeRawDataToSign(Transaction tx, int index, ByteBuffer dst) {
+        writeInput(tx.sharedInput(index), false, dst);
+        writeOutputs(tx.sharedOutputs(), dst);
+    }
+
+    public static void digestRawDataToSign(Transaction tx, int index, MessageDigest md) {
+        byte[] scratch = new byte[8];
+        digestInput(tx.sharedInput(index), false, md, scratch);
+        digestOutputs(tx.sharedOutputs(), md, scratch);
+    }
+
+    /** @return the raw bytes of {@code block} in an array of exactly the right size */
+    public static byte[] rawBlock(Block block) {
+        byte[] raw = new byte[rawBlockSize(block)];
+        writeRawBlock(block, ByteBuffer.wrap(raw));
+        return raw;
+    }
+
+    public static int rawBlockSize(Block block) {
+        int size = block.getPrevBlockHash() == null ? 0 : block.getPrevBlockHash().length;
+        for (Transaction tx : block.getTransactions())
+            size += rawTxSize(tx);
+        return size;
+    }
+
+    public static void writeRawBlock(Block block, ByteBuffer dst) {
+        if (block.getPrevBlockHash() != null)
+            dst.put(block.getPrevBlockHash());
+        for (Transaction tx : block.getTransactions())
+            writeRawTx(tx, dst);
+    }
+
+    public static void digestRawBlock(Block block, MessageDigest md) {
+        if (block.getPrevBlockHash() != null)
+            md.update(block.getPrevBlockHash());
+        for (Transaction tx : block.getTransactions())
+            digestRawTx(tx, md);
+    }
+
+    private static int inputSize(Transaction.Input in, boolean withSignature) {
+        int size = 4;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        if (withSignature && in.signature != null)
+            size += in.signature.length;
+        return size;
+    }
+
+    private static int outputsSize(List<Transaction.Output> outputs) {
+        int size = 0;
+        for (Transaction.Output op : outputs) {
+            size += 8 + op.keyBytes().size();
+        }
+        return size;
+    }
+
+    private static void writeInput(Transaction.Input in, boolean withSignature, ByteBuffer dst) {
+        if (in.prevTxHash != null)
+            dst.put(in.prevTxHash);
+        putInt(dst, in.outputIndex);
+        if (withSignature && in.signature != null)
+            dst.put(in.signature);
+    }
+
+    private static void writeOutputs(List<Transaction.Output> outputs, ByteBuffer dst) {
+        for (Transaction.Output op : outputs) {
+            KeyBytes kb = op.keyBytes();
+            putLong(dst, Double.doubleToRawLongBits(op.value));
+            dst.put(kb.exponent);
+            dst.put(kb.modulus);
+        }
+    }
+
+    private static void digestInput(Transaction.Input in, boolean withSignature, MessageDigest md,
+            byte[] scratch) {
+        if (in.prevTxHash != null)
+            md.update(in.prevTxHash);
+        writeLong(scratch, in.outputIndex, 4);
+        md.update(scratch, 0, 4);
+        if (withSignature && in.signature != null)
+            md.update(in.signature);
+    }
+
+    private static void digestOutputs(List<Transaction.Output> outputs, MessageDigest md,
+            byte[] scratch) {
+        for (Transaction.Output op : outputs) {
+            KeyBytes kb = op.keyBytes();
+            writeLong(scratch, Double.doubleToRawLongBits(op.value), 8);
+            md.update(scratch, 0, 8);
+            md.update(kb.exponent);
+            md.update(kb.modulus);
+        }
+    }
+
+    // explicit big-endian writes, whatever byte order dst is set to
+    private static void putInt(ByteBuffer dst, int v) {
+        dst.put((byte) (v >>> 24)).put((byte) (v >>> 16)).put((byte) (v >>> 8)).put((byte) v);
+    }
+
+    private static void putLong(ByteBuffer dst, long v) {
+        putInt(dst, (int) (v >>> 32));
+        putInt(dst, (int) v);
+    }
+
+    // the low len bytes of v, big-endian, into b[0..len)
+    private static void writeLong(byte[] b, long v, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
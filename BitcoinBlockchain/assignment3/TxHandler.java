@@ -1,15 +1,39 @@
+import java.security.PublicKey;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class TxHandler {
     private UTXOPool pLedger;
+    // verify all input signatures of a batch up front on the fork-join pool
+    private boolean parallelVerify;
+
+    // result of checking one input signature before the accounting pass
+    private static class SigCheck {
+        PublicKey key;
+        boolean valid;
+
+        private SigCheck(PublicKey key){
+            this.key = key;
+        }
+    }
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
-        // IMPLEMENT THIS
+        this(utxoPool, false);
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool)}, but if {@code parallelVerify} is set then
+     * {@link #handleTxs} verifies every input signature of the batch concurrently before
+     * running the usual sequential UTXO accounting. Accepted transactions are identical.
+     */
+    public TxHandler(UTXOPool utxoPool, boolean parallelVerify) {
         this.pLedger = new UTXOPool(utxoPool);
+        this.parallelVerify = parallelVerify;
     }
 
     public UTXOPool getUTXOPool(){
@@ -26,29 +50,43 @@ public class TxHandler {
      */
     
     public boolean isValidTx(Transaction tx) {
-        ArrayList<Transaction.Output> outputs = tx.getOutputs();
-        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        return this.isValidTx(tx, null);
+    }
+
+    // sigs holds the pre-verified signature results for tx's inputs, or null
+    private boolean isValidTx(Transaction tx, SigCheck[] sigs) {
+        List<Transaction.Output> outputs = tx.sharedOutputs();
+        List<Transaction.Input> inputs = tx.sharedInputs();
         
-        ArrayList<UTXO> utxo = this.pLedger.getAllUTXO();
         HashSet<UTXO> seenUTXO = new HashSet<UTXO>();
         double outputSum = 0;
         double inputSum = 0;
+        TxEncoder.SigHashes sigHashes = null;
 
         int n = inputs.size();
         for (int i=0; i < n; i++){
-            UTXO curTrans = new UTXO(inputs.get(i).prevTxHash, inputs.get(i).outputIndex);
-
             // If the current set of unspent transactions doesn't contain the origin of
             // the input transaction, OR the input transaction has already been spent
-            // return false
-            if (!this.pLedger.contains(curTrans) || seenUTXO.contains(curTrans))
+            // return false. checked by hash first so a filtered pool skips the UTXO for misses
+            if (inputs.get(i).prevTxHash == null || !this.pLedger.contains(inputs.get(i).prevTxHash, inputs.get(i).outputIndex))
+                return false;
+            UTXO curTrans = new UTXO(inputs.get(i).prevTxHash, inputs.get(i).outputIndex);
+            if (seenUTXO.contains(curTrans))
                 return false;
             
             // if the input signature does not match the input data (in index) and the intended address
-            // reject
-            if (!Crypto.verifySignature(this.pLedger.getTxOutput(curTrans).address, 
-                tx.getRawDataToSign(i), inputs.get(i).signature)){
-                return false;
+            // reject. only trust a pre-verified result if it was checked against the same key
+            PublicKey address = this.pLedger.getTxOutput(curTrans).address;
+            if (sigs != null && sigs[i] != null && sigs[i].key == address){
+                if (!sigs[i].valid)
+                    return false;
+            }
+            else {
+                // encode the outputs once for all of this tx's inputs
+                if (sigHashes == null)
+                    sigHashes = tx.sigHashes();
+                if (!verifyInput(tx, sigHashes, i, address))
+                    return false;
             }
             inputSum += this.pLedger.getTxOutput(curTrans).value;
             seenUTXO.add(curTrans);
@@ -84,13 +122,14 @@ public class TxHandler {
         // old transaction minus the amount this transaction is using
         // if another new transaction refers to this old transaction
         // then subtract its value in this map from the old transaction
+        SigCheck[][] sigs = this.parallelVerify ? this.verifySignatures(possibleTxs, batchOutputs(possibleTxs, null)) : null;
         int n = possibleTxs.length;
         for (int i=0; i < n; i++){
-            ArrayList<Transaction.Input> input = possibleTxs[i].getInputs();
+            List<Transaction.Input> input = possibleTxs[i].sharedInputs();
             boolean valid = true;
-            if (this.isValidTx(possibleTxs[i])) {
+            if (this.isValidTx(possibleTxs[i], sigs == null ? null : sigs[i])) {
                 // for each input, get the UTXO 
-                for (Transaction.Input tmp : possibleTxs[i].getInputs() ){
+                for (Transaction.Input tmp : possibleTxs[i].sharedInputs() ){
                     UTXO prevTrans = new UTXO( tmp.prevTxHash, tmp.outputIndex );
                     // check if its been used by a previous block of transactions
                     if (!usedTX.contains(prevTrans))
@@ -107,13 +146,13 @@ public class TxHandler {
             // this transaction has already been seen, break
             if (!valid) continue;
             // get the list of outputs
-            ArrayList<Transaction.Output> output = possibleTxs[i].getOutputs();
+            List<Transaction.Output> output = possibleTxs[i].sharedOutputs();
             // start counting to remember which index the output is at
             int outCntr = 0;
             // for each output
             for ( Transaction.Output cur : possibleTxs[i].getOutputs() ){
                 // create new utxo
-                UTXO curUT = new UTXO( possibleTxs[i].getHash(), outCntr );
+                UTXO curUT = new UTXO( possibleTxs[i].getHashKey(), outCntr );
                 // add it and the corresponding output to map
                 this.pLedger.addUTXO(curUT, cur);
                 // increment counter
@@ -125,7 +164,7 @@ public class TxHandler {
 
         for (Transaction cur : txs ){
             int outCntr = 0;
-            for ( Transaction.Input tmp : cur.getInputs() ){
+            for ( Transaction.Input tmp : cur.sharedInputs() ){
                 UTXO prevTrans = new UTXO( tmp.prevTxHash, tmp.outputIndex );
                 this.pLedger.removeUTXO( prevTrans );
                 outCntr += 1;
@@ -137,5 +176,88 @@ public class TxHandler {
         return output;
 
     }
-    
+
+    /**
+     * Verifies the input signatures of {@code txs} ahead of time without touching the pool, so
+     * that a later {@link #handleTxs} on the same transactions finds them in
+     * {@link SignatureCache#shared()}. {@code earlier} maps tx hashes to transactions not yet in
+     * the pool whose outputs {@code txs} may spend (e.g. from blocks still waiting to be
+     * committed); {@code txs} are added to it.
+     */
+    public void preverify(Transaction[] txs, HashMap<Hash, Transaction> earlier) {
+        this.verifySignatures(txs, batchOutputs(txs, earlier));
+    }
+
+    // maps the hash of every tx in txs to the tx, on top of earlier if it's given
+    private static HashMap<Hash, Transaction> batchOutputs(Transaction[] txs, HashMap<Hash, Transaction> earlier) {
+        HashMap<Hash, Transaction> batch = earlier == null ? new HashMap<Hash, Transaction>() : earlier;
+        for (Transaction tx : txs)
+            if (tx.getHash() != null)
+                batch.put(tx.getHashKey(), tx);
+        return batch;
+    }
+
+    /**
+     * Verifies the input signatures of every transaction in {@code txs} concurrently. The key
+     * for an input is looked up in the current pool, or among the outputs in {@code batch} for
+     * in-block chains. Inputs whose key can't be resolved are left null and get checked
+     * serially by {@link #isValidTx}.
+     */
+    private SigCheck[][] verifySignatures(Transaction[] txs, HashMap<Hash, Transaction> batch) {
+        SignatureCache cache = SignatureCache.shared();
+        SigCheck[][] sigs = new SigCheck[txs.length][];
+        TxEncoder.SigHashes[] sigHashes = new TxEncoder.SigHashes[txs.length];
+        ArrayList<int[]> jobs = new ArrayList<int[]>();
+        for (int i = 0; i < txs.length; i++){
+            List<Transaction.Input> inputs = txs[i].sharedInputs();
+            sigs[i] = new SigCheck[inputs.size()];
+            for (int j = 0; j < inputs.size(); j++){
+                Transaction.Input in = inputs.get(j);
+                if (in.prevTxHash == null || in.signature == null)
+                    continue;
+                Transaction.Output prev = this.pLedger.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+                if (prev == null){
+                    Transaction parent = batch.get(Hash.of(in.prevTxHash));
+                    if (parent != null && in.outputIndex >= 0)
+                        prev = parent.sharedOutput(in.outputIndex);
+                }
+                if (prev == null)
+                    continue;
+                sigs[i][j] = new SigCheck(prev.address);
+                if (sigHashes[i] == null)
+                    sigHashes[i] = txs[i].sigHashes();
+                // already verified, e.g. by preverify: skip the RSA check
+                if (cache.contains(sigHashes[i].digest(j), prev.address, in.signature)){
+                    sigs[i][j].valid = true;
+                    continue;
+                }
+                jobs.add(new int[]{i, j});
+            }
+        }
+
+        // each job writes only its own slot, so no extra synchronization is needed
+        IntStream.range(0, jobs.size()).parallel().forEach(k -> {
+            int i = jobs.get(k)[0];
+            int j = jobs.get(k)[1];
+            sigs[i][j].valid = verifyUncached(txs[i], sigHashes[i], j, sigs[i][j].key);
+        });
+        return sigs;
+    }
+
+    // checks the shared signature cache before doing the RSA verification
+    private static boolean verifyInput(Transaction tx, TxEncoder.SigHashes sigHashes, int index, PublicKey key) {
+        if (SignatureCache.shared().contains(sigHashes.digest(index), key, tx.sharedInput(index).signature))
+            return true;
+        return verifyUncached(tx, sigHashes, index, key);
+    }
+
+    // the RSA verification, for an input already looked up in the cache; caches a success
+    // under the digest of the data that was actually verified
+    private static boolean verifyUncached(Transaction tx, TxEncoder.SigHashes sigHashes, int index, PublicKey key) {
+        byte[] signature = tx.sharedInput(index).signature;
+        boolean valid = Crypto.verifySignature(key, sigHashes, index, signature);
+        if (valid)
+            SignatureCache.shared().add(sigHashes.digest(index), key, signature);
+        return valid;
+    }
 }
@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An order-independent hash of a set of (UTXO, output) pairs that is updated in O(1) as pairs
+ * come and go: each pair is hashed with SHA-256 and the commitment is the sum of those hashes
+ * mod 2^256. Two pools with the same contents have the same commitment no matter how they got
+ * there, so it can be compared across nodes and against snapshots without sorting anything.
+ *
+ * Being a plain additive multiset hash, it is meant for catching divergence between honest
+ * nodes; it is not collision resistant against someone crafting UTXOs to forge a commitment.
+ */
+public class UTXOCommitment {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // the fixed-size part of an element, then its digest
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(Hash.SIZE + 4 + 4 + 8 + 4));
+
+    // little-endian 64-bit limbs of the 256-bit sum
+    private long[] sum;
+
+    /** Creates the commitment of the empty set */
+    public UTXOCommitment() {
+        this.sum = new long[4];
+    }
+
+    public UTXOCommitment(UTXOCommitment other) {
+        this.sum = other.sum.clone();
+    }
+
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        ByteBuffer h = elementHash(utxo, txOut);
+        long carry = 0;
+        for (int i = 0; i < 4; i++) {
+            long a = this.sum[i];
+            long s = a + limb(h, i) + carry;
+            carry = (Long.compareUnsigned(s, a) < 0 || (carry == 1 && s == a)) ? 1 : 0;
+            this.sum[i] = s;
+        }
+    }
+
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        ByteBuffer h = elementHash(utxo, txOut);
+        long borrow = 0;
+        for (int i = 0; i < 4; i++) {
+            long a = this.sum[i];
+            long b = limb(h, i);
+            long d = a - b - borrow;
+            borrow = (Long.compareUnsigned(a, b) < 0 || (borrow == 1 && a == b)) ? 1 : 0;
+            this.sum[i] = d;
+        }
+    }
+
+    /** @return the 32-byte big-endian commitment */
+    public byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(32);
+        for (int i = 3; i >= 0; i--)
+            buf.putLong(this.sum[i]);
+        return buf.array();
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof UTXOCommitment))
+            return false;
+        long[] o = ((UTXOCommitment) other).sum;
+        return o[0] == sum[0] && o[1] == sum[1] && o[2] == sum[2] && o[3] == sum[3];
+    }
+
+    public int hashCode() {
+        return (int) (sum[0] ^ (sum[0] >>> 32));
+    }
+
+    /*
+     * SHA-256 of tx hash | lengths, index, value | address, left at the start of the thread's
+     * scratch buffer. a 32-byte tx hash goes in from its words, so nothing is allocated
+     */
+    private static ByteBuffer elementHash(UTXO utxo, Transaction.Output txOut) {
+        MessageDigest md = SHA256.get();
+        ByteBuffer buf = SCRATCH.get();
+        buf.clear();
+        Hash txHash = utxo.getHash();
+        if (txHash.length() == Hash.SIZE)
+            buf.putLong(txHash.word(0)).putLong(txHash.word(1)).putLong(txHash.word(2)).putLong(txHash.word(3));
+        else
+            md.update(txHash.toBytes());
+        TxEncoder.KeyBytes kb = txOut.keyBytes();
+        // the lengths keep the variable-size parts from running into each other
+        buf.putInt(txHash.length()).putInt(utxo.getIndex()).putLong(Double.doubleToLongBits(txOut.value))
+                .putInt(kb.exponent.length);
+        md.update(buf.array(), 0, buf.position());
+        md.update(kb.exponent);
+        md.update(kb.modulus);
+        try {
+            md.digest(buf.array(), 0, Hash.SIZE);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return buf;
+    }
+
+    // limb i of the digest in h, the last 8 bytes being limb 0
+    private static long limb(ByteBuffer h, int i) {
+        return h.getLong(8 * (3 - i));
+    }
+}
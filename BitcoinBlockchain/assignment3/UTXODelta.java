@@ -0,0 +1,50 @@
+import java.util.ArrayList;
+
+/**
+ * The changes a block made to a {@link UTXOPool}, in the order they happened. Every entry keeps
+ * the output that was there before (null if the UTXO was created) and the one after (null if
+ * it was spent), so a block can be replayed onto its parent's pool or undone from its own.
+ */
+public class UTXODelta {
+
+    private ArrayList<UTXO> utxos;
+    private ArrayList<Transaction.Output> before;
+    private ArrayList<Transaction.Output> after;
+
+    public UTXODelta() {
+        utxos = new ArrayList<UTXO>();
+        before = new ArrayList<Transaction.Output>();
+        after = new ArrayList<Transaction.Output>();
+    }
+
+    /** Records that {@code utxo} went from {@code prevOut} to {@code newOut} */
+    public void record(UTXO utxo, Transaction.Output prevOut, Transaction.Output newOut) {
+        utxos.add(utxo);
+        before.add(prevOut);
+        after.add(newOut);
+    }
+
+    /** @return the number of recorded changes */
+    public int size() {
+        return utxos.size();
+    }
+
+    /** Replays the changes onto {@code pool}, which should be in the state the block started from */
+    public void apply(UTXOPool pool) {
+        for (int i = 0; i < utxos.size(); i++)
+            set(pool, utxos.get(i), after.get(i));
+    }
+
+    /** Reverts the changes on {@code pool}, which should be in the state the block left it in */
+    public void undo(UTXOPool pool) {
+        for (int i = utxos.size() - 1; i >= 0; i--)
+            set(pool, utxos.get(i), before.get(i));
+    }
+
+    private static void set(UTXOPool pool, UTXO utxo, Transaction.Output txOut) {
+        if (txOut == null)
+            pool.removeUTXO(utxo);
+        else
+            pool.addUTXO(utxo, txOut);
+    }
+}
@@ -0,0 +1,284 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cuckoo filter over UTXOs: {@link #mightContain} is never wrong when it says a UTXO is
+ * absent, and unlike a Bloom filter entries can be removed again. Each UTXO is reduced to a
+ * 16-bit fingerprint stored in one of two 4-slot buckets, so with the table at most 95% full
+ * about 0.01% of absent UTXOs come back as "maybe".
+ *
+ * The hash is taken straight from the first 16 bytes of a 32-byte tx hash, either as bytes or as
+ * the words of a {@link Hash}, and the index, so checking allocates nothing. {@link UTXOPool#setFilter}
+ * keeps one in front of a pool and also counts how often a "maybe" turned out to be absent, the
+ * observed false-positive rate; the counters can be updated from any number of reader threads.
+ *
+ * The table is split into pages that copies share until one of them writes to a page, which it
+ * then copies first. So copying a filter along with its pool costs O(number of pages), and each
+ * copy pays for the pages its own changes touch.
+ */
+public class UTXOFilter {
+
+    private static final int SLOTS = 4;
+    private static final int MAX_KICKS = 500;
+    // slots per page
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    // SLOTS fingerprints per bucket, 0 for an empty slot, in pages of PAGE_SIZE slots
+    private short[][] pages;
+    // the pages this filter may write to in place are those whose owner is its token
+    private Object[] owners;
+    private Object token;
+    private int slots;
+    private int mask;
+    private int count;
+    // a fingerprint that couldn't be placed after MAX_KICKS, with one of its buckets
+    private short victim;
+    private int victimBucket;
+    private long kickSeed;
+
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder trueNegatives = new LongAdder();
+
+    /** Creates a filter with room for about {@code capacity} UTXOs */
+    public UTXOFilter(int capacity) {
+        int buckets = Integer.highestOneBit(Math.max(1, (int) (capacity / (SLOTS * 0.95)) + 1) * 2 - 1);
+        this.slots = buckets * SLOTS;
+        this.mask = buckets - 1;
+        int numPages = (this.slots + PAGE_SIZE - 1) >>> PAGE_BITS;
+        this.pages = new short[numPages][];
+        this.owners = new Object[numPages];
+        this.token = new Object();
+        for (int i = 0; i < numPages; i++) {
+            this.pages[i] = new short[Math.min(PAGE_SIZE, this.slots - (i << PAGE_BITS))];
+            this.owners[i] = this.token;
+        }
+    }
+
+    /**
+     * Creates an independent copy of {@code other}, sharing its pages until either writes to
+     * them. Neither may be changed while the copy is being made.
+     */
+    public UTXOFilter(UTXOFilter other) {
+        this.pages = other.pages.clone();
+        this.owners = new Object[other.owners.length];
+        this.token = new Object();
+        // other now has to copy a page before writing to it, too
+        other.token = new Object();
+        this.slots = other.slots;
+        this.mask = other.mask;
+        this.count = other.count;
+        this.victim = other.victim;
+        this.victimBucket = other.victimBucket;
+        this.kickSeed = other.kickSeed;
+        this.falsePositives.add(other.falsePositives.sum());
+        this.trueNegatives.add(other.trueNegatives.sum());
+    }
+
+    /**
+     * Adds the UTXO ({@code txHash}, {@code index}), which must not be in the filter already.
+     *
+     * @return false if the filter is full; it then has to be rebuilt bigger
+     */
+    public boolean add(byte[] txHash, int index) {
+        return add(hash(txHash, index));
+    }
+
+    /** Same as {@link #add(byte[], int)} for a tx hash held as a {@link Hash} */
+    public boolean add(Hash txHash, int index) {
+        return add(hash(txHash, index));
+    }
+
+    private boolean add(long h) {
+        if (this.victim != 0)
+            return false;
+        short fp = fingerprint(h);
+        int i1 = (int) h & this.mask;
+        int i2 = altBucket(i1, fp);
+        if (insert(i1, fp) || insert(i2, fp)) {
+            this.count += 1;
+            return true;
+        }
+        // evict a random resident and move it to its other bucket, and so on
+        int i = (this.kickSeed++ & 1) == 0 ? i1 : i2;
+        for (int k = 0; k < MAX_KICKS; k++) {
+            int slot = i * SLOTS + (int) (mix(this.kickSeed++) & (SLOTS - 1));
+            short out = get(slot);
+            set(slot, fp);
+            fp = out;
+            i = altBucket(i, fp);
+            if (insert(i, fp)) {
+                this.count += 1;
+                return true;
+            }
+        }
+        // everything is still findable, but the next add has to fail
+        this.victim = fp;
+        this.victimBucket = i;
+        this.count += 1;
+        return true;
+    }
+
+    /** Removes the UTXO ({@code txHash}, {@code index}), which must be in the filter */
+    public void remove(byte[] txHash, int index) {
+        remove(hash(txHash, index));
+    }
+
+    /** Same as {@link #remove(byte[], int)} for a tx hash held as a {@link Hash} */
+    public void remove(Hash txHash, int index) {
+        remove(hash(txHash, index));
+    }
+
+    private void remove(long h) {
+        short fp = fingerprint(h);
+        int i1 = (int) h & this.mask;
+        int i2 = altBucket(i1, fp);
+        if (delete(i1, fp) || delete(i2, fp)) {
+            this.count -= 1;
+            // room was made, so try to put the victim back in the table
+            if (this.victim != 0 && (insert(this.victimBucket, this.victim)
+                    || insert(altBucket(this.victimBucket, this.victim), this.victim)))
+                this.victim = 0;
+        } else if (this.victim == fp && (this.victimBucket == i1 || this.victimBucket == i2)) {
+            this.victim = 0;
+            this.count -= 1;
+        }
+    }
+
+    /** @return false if the UTXO ({@code txHash}, {@code index}) is definitely not in the filter */
+    public boolean mightContain(byte[] txHash, int index) {
+        return mightContain(hash(txHash, index));
+    }
+
+    /** Same as {@link #mightContain(byte[], int)} for a tx hash held as a {@link Hash} */
+    public boolean mightContain(Hash txHash, int index) {
+        return mightContain(hash(txHash, index));
+    }
+
+    private boolean mightContain(long h) {
+        short fp = fingerprint(h);
+        int i1 = (int) h & this.mask;
+        int i2 = altBucket(i1, fp);
+        if (this.victim == fp && (this.victimBucket == i1 || this.victimBucket == i2))
+            return true;
+        return find(i1, fp) || find(i2, fp);
+    }
+
+    /** @return the number of UTXOs in the filter */
+    public int size() {
+        return this.count;
+    }
+
+    /** @return the number of UTXOs the table has slots for */
+    public int capacity() {
+        return this.slots;
+    }
+
+    /** Records how a "maybe" from {@link #mightContain} turned out, for {@link #getFalsePositiveRate} */
+    public void recordLookup(boolean maybe, boolean present) {
+        if (maybe && !present)
+            this.falsePositives.increment();
+        else if (!maybe)
+            this.trueNegatives.increment();
+    }
+
+    /** @return the fraction of recorded lookups for absent UTXOs that the filter didn't rule out */
+    public double getFalsePositiveRate() {
+        long fp = this.falsePositives.sum();
+        long absent = fp + this.trueNegatives.sum();
+        return absent == 0 ? 0 : (double) fp / absent;
+    }
+
+    /** @return the expected false-positive rate at the current load */
+    public double getExpectedFalsePositiveRate() {
+        return 2.0 * SLOTS * ((double) this.count / this.slots) / 65535;
+    }
+
+    /** Resets the lookup counters */
+    public void clearStats() {
+        this.falsePositives.reset();
+        this.trueNegatives.reset();
+    }
+
+    private boolean insert(int bucket, short fp) {
+        int base = bucket * SLOTS;
+        for (int s = base; s < base + SLOTS; s++)
+            if (get(s) == 0) {
+                set(s, fp);
+                return true;
+            }
+        return false;
+    }
+
+    private boolean delete(int bucket, short fp) {
+        int base = bucket * SLOTS;
+        for (int s = base; s < base + SLOTS; s++)
+            if (get(s) == fp) {
+                set(s, (short) 0);
+                return true;
+            }
+        return false;
+    }
+
+    private boolean find(int bucket, short fp) {
+        int base = bucket * SLOTS;
+        for (int s = base; s < base + SLOTS; s++)
+            if (get(s) == fp)
+                return true;
+        return false;
+    }
+
+    private short get(int slot) {
+        return this.pages[slot >>> PAGE_BITS][slot & (PAGE_SIZE - 1)];
+    }
+
+    // copies the slot's page first if it may be shared with another filter
+    private void set(int slot, short fp) {
+        int p = slot >>> PAGE_BITS;
+        if (this.owners[p] != this.token) {
+            this.pages[p] = this.pages[p].clone();
+            this.owners[p] = this.token;
+        }
+        this.pages[p][slot & (PAGE_SIZE - 1)] = fp;
+    }
+
+    // the other bucket for fp; applying it twice gives back the first
+    private int altBucket(int bucket, short fp) {
+        return (bucket ^ (int) mix(fp)) & this.mask;
+    }
+
+    private static short fingerprint(long h) {
+        short fp = (short) (h >>> 48);
+        return fp == 0 ? 1 : fp;
+    }
+
+    // both forms give the same result for the same hash
+    private static long hash(byte[] txHash, int index) {
+        if (txHash.length == Hash.SIZE)
+            return hash(Hash.word(txHash, 0), Hash.word(txHash, 8), index);
+        long h = index;
+        for (int i = 0; i < txHash.length; i++)
+            h = h * 31 + txHash[i];
+        return mix(h ^ txHash.length);
+    }
+
+    private static long hash(Hash txHash, int index) {
+        if (txHash.length() == Hash.SIZE)
+            return hash(txHash.word(0), txHash.word(1), index);
+        return hash(txHash.toBytes(), index);
+    }
+
+    // the first 16 bytes of a SHA-256 hash are as good as all of them
+    private static long hash(long w0, long w1, int index) {
+        return mix(w0 ^ mix(w1 + index));
+    }
+
+    // the 64-bit finalizer from MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,32 +1,226 @@
+import java.security.PublicKey;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
+
+    /** if set, every change to the pool is also recorded here */
+    private UTXODelta journal;
+
+    /** if set, rules out most absent UTXOs before the store is asked */
+    private UTXOFilter filter;
+
+    /** if set, the pool's UTXOs by the address they pay */
+    private AddressIndex addressIndex;
+
+    /** if set, order-independent hash of the pool's contents, kept up to date by every change */
+    private UTXOCommitment commitment;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new HashUTXOStore();
+    }
+
+    /** Creates a new empty UTXOPool kept in {@code store} */
+    public UTXOPool(UTXOStore store) {
+        H = store;
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, using the same kind of store. How
+     * much this costs depends on the store, e.g. O(1) for a {@link PersistentUTXOStore}
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+        if (uPool.commitment != null)
+            commitment = new UTXOCommitment(uPool.commitment);
+        if (uPool.filter != null)
+            filter = new UTXOFilter(uPool.filter);
+        if (uPool.addressIndex != null)
+            addressIndex = new AddressIndex(uPool.addressIndex);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        Transaction.Output prevOut = tracked() ? H.get(utxo) : null;
+        if (journal != null)
+            journal.record(utxo, prevOut, txOut);
         H.put(utxo, txOut);
+        if (commitment != null) {
+            if (prevOut != null)
+                commitment.remove(utxo, prevOut);
+            commitment.add(utxo, txOut);
+        }
+        if (addressIndex != null) {
+            if (prevOut != null)
+                addressIndex.remove(utxo, prevOut);
+            addressIndex.add(utxo, txOut);
+        }
+        if (filter != null && prevOut == null && !filter.add(utxo.getHash(), utxo.getIndex()))
+            rebuildFilter(filter.capacity() * 2);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (!tracked()) {
+            H.remove(utxo);
+            return;
+        }
+        Transaction.Output prevOut = H.getAndRemove(utxo);
+        if (prevOut == null)
+            return;
+        if (journal != null)
+            journal.record(utxo, prevOut, null);
+        if (filter != null)
+            filter.remove(utxo.getHash(), utxo.getIndex());
+        if (commitment != null)
+            commitment.remove(utxo, prevOut);
+        if (addressIndex != null)
+            addressIndex.remove(utxo, prevOut);
+    }
+
+    // true if anything kept alongside the store needs the output a change replaces
+    private boolean tracked() {
+        return journal != null || filter != null || addressIndex != null || commitment != null;
+    }
+
+    /**
+     * Keeps a {@link UTXOCommitment} to the pool's contents if {@code enabled}, or drops it. It
+     * is computed from the current contents, kept up to date by every later change at the cost of
+     * a SHA-256 each, and carried over to copies of the pool. Pools that are only used to try
+     * transactions out don't need one, so it is off unless asked for.
+     */
+    public void setCommitment(boolean enabled) {
+        if (!enabled) {
+            commitment = null;
+        } else if (commitment == null) {
+            UTXOCommitment c = new UTXOCommitment();
+            H.forEach(c::add);
+            commitment = c;
+        }
+    }
+
+    /**
+     * Puts a {@link UTXOFilter} in front of the pool if {@code enabled}, or drops it. It is built
+     * from the current contents, kept up to date by every later change, and carried over to
+     * copies of the pool (so pools derived from this one, e.g. by {@link TxHandler}, have it too).
+     * Copies share the filter's pages until they change them, so copying it is cheap.
+     */
+    public void setFilter(boolean enabled) {
+        if (!enabled)
+            filter = null;
+        else if (filter == null)
+            rebuildFilter(Math.max(1024, H.size() * 2));
+    }
+
+    /**
+     * Keeps an {@link AddressIndex} of the pool if {@code enabled}, or drops it. It is built from
+     * the current contents, kept up to date by every later change, and shared with copies of the
+     * pool in O(1), so the per-block pools of a {@link BlockChain} can all have one.
+     */
+    public void setAddressIndex(boolean enabled) {
+        if (!enabled) {
+            addressIndex = null;
+        } else if (addressIndex == null) {
+            AddressIndex index = new AddressIndex();
+            H.forEach(index::add);
+            addressIndex = index;
+        }
+    }
+
+    /** @return the pool's address index, or null if there is none */
+    public AddressIndex getAddressIndex() {
+        return addressIndex;
+    }
+
+    /**
+     * @return the UTXOs paying {@code address}. With an address index this is O(outputs owned),
+     *         otherwise the whole pool is scanned.
+     */
+    public ArrayList<UTXO> getUTXOs(PublicKey address) {
+        ArrayList<UTXO> owned = new ArrayList<UTXO>();
+        forEachOwned(address, (ut, txOut) -> owned.add(ut));
+        return owned;
+    }
+
+    /** @return the total value of the UTXOs paying {@code address} */
+    public double getBalance(PublicKey address) {
+        double[] sum = new double[1];
+        forEachOwned(address, (ut, txOut) -> sum[0] += txOut.value);
+        return sum[0];
+    }
+
+    /**
+     * Picks UTXOs paying {@code address} worth at least {@code amount}, largest first, so a
+     * payment spends as few inputs as possible.
+     *
+     * @return the chosen UTXOs, or null if {@code address} doesn't own enough
+     */
+    public ArrayList<UTXO> selectCoins(PublicKey address, double amount) {
+        ArrayList<Map.Entry<UTXO, Transaction.Output>> owned = new ArrayList<Map.Entry<UTXO, Transaction.Output>>();
+        forEachOwned(address, (ut, txOut) -> owned.add(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(ut, txOut)));
+        owned.sort((x, y) -> Double.compare(y.getValue().value, x.getValue().value));
+        ArrayList<UTXO> chosen = new ArrayList<UTXO>();
+        double sum = 0;
+        for (Map.Entry<UTXO, Transaction.Output> e : owned) {
+            if (sum >= amount)
+                break;
+            chosen.add(e.getKey());
+            sum += e.getValue().value;
+        }
+        return sum >= amount ? chosen : null;
+    }
+
+    private void forEachOwned(PublicKey address, BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        if (addressIndex != null) {
+            addressIndex.forEach(address, action);
+            return;
+        }
+        H.forEach((ut, txOut) -> {
+            if (address.equals(txOut.address))
+                action.accept(ut, txOut);
+        });
+    }
+
+    /**
+     * @return the 32-byte commitment to the pool's contents (see {@link UTXOCommitment}); pools
+     *         with the same UTXOs and outputs have the same one. Unless the pool keeps one (see
+     *         {@link #setCommitment}), it is computed from the whole pool
+     */
+    public byte[] getCommitment() {
+        if (commitment != null)
+            return commitment.toBytes();
+        UTXOCommitment c = new UTXOCommitment();
+        H.forEach(c::add);
+        return c.toBytes();
+    }
+
+    /** @return the filter in front of the pool, for its statistics, or null if there is none */
+    public UTXOFilter getFilter() {
+        return filter;
+    }
+
+    private void rebuildFilter(int capacity) {
+        UTXOFilter f = new UTXOFilter(capacity);
+        H.forEach((ut, txOut) -> f.add(ut.getHash(), ut.getIndex()));
+        filter = f;
+    }
+
+    /**
+     * Starts recording every later change to this pool into {@code delta}, or stops recording
+     * if {@code delta} is null. Copies of the pool don't inherit the journal.
+     */
+    public void record(UTXODelta delta) {
+        journal = delta;
     }
 
     /**
@@ -39,16 +233,72 @@ public class UTXOPool {
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        if (filter == null)
+            return H.containsKey(utxo);
+        if (!filter.mightContain(utxo.getHash(), utxo.getIndex())) {
+            filter.recordLookup(false, false);
+            return false;
+        }
+        boolean present = H.containsKey(utxo);
+        filter.recordLookup(true, present);
+        return present;
+    }
+
+    /**
+     * Same as {@link #contains(UTXO)} for the UTXO ({@code txHash}, {@code index}), but with a
+     * filter set, UTXOs it rules out don't cost a {@link UTXO} or a store lookup
+     */
+    public boolean contains(byte[] txHash, int index) {
+        if (filter != null) {
+            boolean maybe = filter.mightContain(txHash, index);
+            if (!maybe) {
+                filter.recordLookup(false, false);
+                return false;
+            }
+            boolean present = H.containsKey(new UTXO(txHash, index));
+            filter.recordLookup(true, present);
+            return present;
+        }
+        return H.containsKey(new UTXO(txHash, index));
+    }
+
+    /** Writes out changes the store is still buffering in memory, e.g. for a {@link DiskUTXOStore} */
+    public void flush() {
+        H.flush();
+    }
+
+    /** Same as {@link #flush()}, naming the state written out; see {@link UTXOStore#flush(byte[])} */
+    public void flush(byte[] label) {
+        H.flush(label);
+    }
+
+    /** Calls {@code action} with every UTXO in the pool and its output, without copying them out */
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        H.forEach(action);
+    }
+
+    /**
+     * @return a stream of the pool's (UTXO, output) pairs, split the way the store is laid out.
+     *         The pool must not change while the stream is running.
+     */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> stream() {
+        return StreamSupport.stream(H.spliterator(), false);
+    }
+
+    /** @return a parallel version of {@link #stream} */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> parallelStream() {
+        return StreamSupport.stream(H.spliterator(), true);
+    }
+
+    /** @return the sum of the values of all UTXOs in the pool */
+    public double getTotalValue() {
+        return parallelStream().mapToDouble(e -> e.getValue().value).sum();
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        H.forEach((ut, txOut) -> allUTXO.add(ut));
         return allUTXO;
     }
 }
@@ -0,0 +1,372 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * A UTXOPool written to a file, as of one block, so a {@link BlockChain} can start from it
+ * instead of replaying every block since genesis. The layout is
+ *
+ * <pre>
+ *   int magic | int version | block hash
+ *   int #addresses | address*            (each distinct public key once, X.509 encoded, sorted)
+ *   long #utxos | (tx hash | int index | double value | int address)*   sorted by UTXO
+ *   32-byte SHA-256 of everything before it
+ * </pre>
+ *
+ * where byte arrays are written as an int length followed by the bytes. {@link #write} streams
+ * the entries out through an external sort, without holding the pool's entries in memory, and
+ * {@link #load} maps the file a window at a time, checks the content hash against a trusted one
+ * and bulk-loads the entries into a {@link UTXOStore}.
+ */
+public class UTXOSnapshot {
+
+    private static final int MAGIC = 0x5554584f;
+    private static final int VERSION = 1;
+    private static final int HASH_SIZE = 32;
+    /** the most entries {@link #write} sorts in memory at once */
+    static final int RUN_SIZE = 1 << 18;
+    /** the most bytes {@link #load} maps at once, since a mapping can't be any larger */
+    static final int MAP_WINDOW = Integer.MAX_VALUE;
+
+    private byte[] blockHash;
+    private UTXOPool pool;
+    private byte[] contentHash;
+
+    private UTXOSnapshot(byte[] blockHash, UTXOPool pool, byte[] contentHash) {
+        this.blockHash = blockHash;
+        this.pool = pool;
+        this.contentHash = contentHash;
+    }
+
+    /** @return the hash of the block whose state this is */
+    public byte[] getBlockHash() {
+        return blockHash;
+    }
+
+    /** @return the loaded pool */
+    public UTXOPool getUTXOPool() {
+        return pool;
+    }
+
+    /** @return the SHA-256 of the snapshot file's contents, for comparing against a trusted one */
+    public byte[] getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Writes {@code pool}, the state after block {@code blockHash}, to {@code file}. The entries
+     * are read in one pass over the store and sorted in runs of {@link #RUN_SIZE}; if there is
+     * more than one run, each is spilled to a temporary file next to {@code file} and the runs
+     * are merged into it, so memory stays bounded by the run size and the address table.
+     *
+     * @return the content hash written at the end of the file
+     */
+    public static byte[] write(byte[] blockHash, UTXOPool pool, File file) throws IOException {
+        ArrayList<byte[]> addresses = new ArrayList<byte[]>();
+        HashMap<ByteBuffer, Integer> addressIds = new HashMap<ByteBuffer, Integer>();
+        ArrayList<Entry> run = new ArrayList<Entry>();
+        ArrayList<File> spilled = new ArrayList<File>();
+        File dir = file.getAbsoluteFile().getParentFile();
+        long[] count = new long[1];
+        try {
+            try {
+                pool.forEach((ut, op) -> {
+                    byte[] encoded = op.address.getEncoded();
+                    Integer id = addressIds.get(ByteBuffer.wrap(encoded));
+                    if (id == null) {
+                        id = addresses.size();
+                        addressIds.put(ByteBuffer.wrap(encoded), id);
+                        addresses.add(encoded);
+                    }
+                    run.add(new Entry(ut, op.value, id));
+                    count[0]++;
+                    if (run.size() == RUN_SIZE) {
+                        try {
+                            spilled.add(spill(run, dir));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (!spilled.isEmpty() && !run.isEmpty())
+                spilled.add(spill(run, dir));
+            Collections.sort(run);
+            // ids were handed out in store order; the file lists addresses sorted, so it doesn't
+            // depend on the store
+            Integer[] order = new Integer[addresses.size()];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, (x, y) -> ByteBuffer.wrap(addresses.get(x)).compareTo(ByteBuffer.wrap(addresses.get(y))));
+            int[] ids = new int[order.length];
+            for (int i = 0; i < order.length; i++)
+                ids[order[i]] = i;
+
+            MessageDigest md = sha256();
+            try (FileOutputStream fout = new FileOutputStream(file)) {
+                DataOutputStream out = new DataOutputStream(
+                        new DigestOutputStream(new BufferedOutputStream(fout), md));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeBytes(out, blockHash);
+                out.writeInt(order.length);
+                for (int i : order)
+                    writeBytes(out, addresses.get(i));
+                out.writeLong(count[0]);
+                if (spilled.isEmpty()) {
+                    for (Entry e : run)
+                        e.write(out, ids);
+                } else {
+                    merge(spilled, out, ids);
+                }
+                out.flush();
+                byte[] contentHash = md.digest();
+                out.write(contentHash);
+                out.flush();
+                fout.getFD().sync();
+                return contentHash;
+            }
+        } finally {
+            for (File f : spilled)
+                f.delete();
+        }
+    }
+
+    /**
+     * Loads the snapshot in {@code file} into {@code store}, which should be empty. The hash at
+     * the end of the file only catches corruption, since whoever wrote the file wrote it too, so
+     * the contents must also hash to {@code expectedHash}: the content hash {@link #write}
+     * returned, obtained from somewhere trusted. Nothing is loaded unless both match.
+     */
+    public static UTXOSnapshot load(File file, byte[] expectedHash, UTXOStore store) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HASH_SIZE)
+                throw new IOException("snapshot is truncated");
+            long end = size - HASH_SIZE;
+            MessageDigest md = sha256();
+            for (long pos = 0; pos < end; pos += MAP_WINDOW)
+                md.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, end - pos)));
+            byte[] contentHash = md.digest();
+            byte[] stored = new byte[HASH_SIZE];
+            channel.map(FileChannel.MapMode.READ_ONLY, end, HASH_SIZE).get(stored);
+            if (!Arrays.equals(contentHash, stored))
+                throw new IOException("snapshot content hash doesn't match");
+            if (!Arrays.equals(contentHash, expectedHash))
+                throw new IOException("snapshot is not the expected one");
+            MappedReader body = new MappedReader(channel, end);
+
+            if (body.getInt() != MAGIC || body.getInt() != VERSION)
+                throw new IOException("not a UTXO snapshot");
+            byte[] blockHash = body.getBytes();
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            PublicKey[] addresses = new PublicKey[body.getInt()];
+            for (int i = 0; i < addresses.length; i++)
+                addresses[i] = keyFactory.generatePublic(new X509EncodedKeySpec(body.getBytes()));
+            long count = body.getLong();
+            for (long i = 0; i < count; i++) {
+                byte[] txHash = body.getBytes();
+                int index = body.getInt();
+                double value = body.getDouble();
+                store.put(new UTXO(txHash, index), new Transaction.Output(value, addresses[body.getInt()]));
+            }
+            return new UTXOSnapshot(blockHash, new UTXOPool(store), contentHash);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("bad address in snapshot", e);
+        }
+    }
+
+    // sorts run, writes it to a new temporary file in dir and empties it
+    private static File spill(ArrayList<Entry> run, File dir) throws IOException {
+        Collections.sort(run);
+        File f = File.createTempFile("utxo-run", ".tmp", dir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            for (Entry e : run)
+                e.write(out, null);
+        } catch (IOException e) {
+            f.delete();
+            throw e;
+        }
+        run.clear();
+        return f;
+    }
+
+    // writes the entries of the sorted runs to out, in order, with their address ids mapped
+    private static void merge(ArrayList<File> runs, DataOutputStream out, int[] ids) throws IOException {
+        PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>();
+        try {
+            for (File f : runs) {
+                RunReader r = new RunReader(f);
+                if (r.advance())
+                    heads.add(r);
+                else
+                    r.close();
+            }
+            while (!heads.isEmpty()) {
+                RunReader r = heads.poll();
+                r.head.write(out, ids);
+                if (r.advance())
+                    heads.add(r);
+                else
+                    r.close();
+            }
+        } finally {
+            for (RunReader r : heads)
+                r.close();
+        }
+    }
+
+    /** A UTXO with its output's value and address id, as written in the file and in runs */
+    private static final class Entry implements Comparable<Entry> {
+        final UTXO utxo;
+        final double value;
+        final int address;
+
+        Entry(UTXO utxo, double value, int address) {
+            this.utxo = utxo;
+            this.value = value;
+            this.address = address;
+        }
+
+        // ids, if given, maps the address id to the one written
+        void write(DataOutputStream out, int[] ids) throws IOException {
+            writeBytes(out, utxo.getTxHash());
+            out.writeInt(utxo.getIndex());
+            out.writeDouble(value);
+            out.writeInt(ids == null ? address : ids[address]);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            byte[] txHash = new byte[in.readInt()];
+            in.readFully(txHash);
+            int index = in.readInt();
+            double value = in.readDouble();
+            return new Entry(new UTXO(txHash, index), value, in.readInt());
+        }
+
+        public int compareTo(Entry other) {
+            return utxo.compareTo(other.utxo);
+        }
+    }
+
+    /** The next entry of a spilled run, ordered by it */
+    private static final class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        Entry head;
+
+        RunReader(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                head = Entry.read(in);
+                return true;
+            } catch (EOFException e) {
+                head = null;
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        public int compareTo(RunReader other) {
+            return head.compareTo(other.head);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    // reads [0, end) of a file through mappings of at most MAP_WINDOW bytes, moving the window
+    // along as values are read, so they may straddle two windows
+    private static class MappedReader {
+        private final FileChannel channel;
+        private final long end;
+        // file offset of buf's first byte
+        private long start;
+        private MappedByteBuffer buf;
+
+        MappedReader(FileChannel channel, long end) throws IOException {
+            this.channel = channel;
+            this.end = end;
+            this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(MAP_WINDOW, end));
+        }
+
+        int getInt() throws IOException {
+            need(4);
+            return buf.getInt();
+        }
+
+        long getLong() throws IOException {
+            need(8);
+            return buf.getLong();
+        }
+
+        double getDouble() throws IOException {
+            need(8);
+            return buf.getDouble();
+        }
+
+        // an int length followed by that many bytes
+        byte[] getBytes() throws IOException {
+            byte[] b = new byte[getInt()];
+            int off = 0;
+            while (off < b.length) {
+                need(1);
+                int n = Math.min(b.length - off, buf.remaining());
+                buf.get(b, off, n);
+                off += n;
+            }
+            return b;
+        }
+
+        // maps the next window from the current position if fewer than n bytes are left
+        private void need(int n) throws IOException {
+            if (buf.remaining() >= n)
+                return;
+            long at = start + buf.position();
+            if (end - at < n)
+                throw new IOException("snapshot is truncated");
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(MAP_WINDOW, end - at));
+            start = at;
+        }
+    }
+}
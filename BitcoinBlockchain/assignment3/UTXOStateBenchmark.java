@@ -0,0 +1,148 @@
+// Compares the ways BlockChain can keep UTXO state for its blocks:
+//   snapshot-hash        a full HashMap copy of the pool per block (the original model)
+//   snapshot-persistent  a pool per block sharing structure through PersistentUTXOStore
+//   undo-log             one live pool plus a UTXODelta per block
+//   undo-log-disk        the same, with the live pool in a DiskUTXOStore flushed every block
+//   undo-log-offheap     the same, with the live pool in an OffHeapUTXOStore flushed every block
+// A chain is generated once up front (with a side block next to every tenth block so the
+// undo log has to switch forks) out of sealed transactions, then fed to a fresh BlockChain in
+// each mode.
+//
+// usage: java UTXOStateBenchmark [numBlocks] [txsPerBlock]
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class UTXOStateBenchmark {
+
+    // an output the generator can still spend
+    private static class Coin {
+        Transaction tx;
+        int index;
+        KeyPair owner;
+
+        private Coin(Transaction tx, int index, KeyPair owner) {
+            this.tx = tx;
+            this.index = index;
+            this.owner = owner;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numBlocks = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int txsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair[] keys = new KeyPair[32];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = gen.generateKeyPair();
+
+        Block genesis = new Block(null, keys[0].getPublic());
+        genesis.finalize();
+        ArrayList<Block> blocks = generateChain(genesis, keys, numBlocks, txsPerBlock);
+        System.out.println("generated " + blocks.size() + " blocks");
+
+        run("snapshot-hash", genesis, blocks, new HashUTXOStore(), false);
+        run("snapshot-persistent", genesis, blocks, new PersistentUTXOStore(), false);
+        run("undo-log", genesis, blocks, new PersistentUTXOStore(), true);
+        run("undo-log-offheap", genesis, blocks, new OffHeapUTXOStore(), true);
+        File log = File.createTempFile("utxo", ".log");
+        log.deleteOnExit();
+        DiskUTXOStore disk = new DiskUTXOStore(log, DiskUTXOStore.DEFAULT_CACHE_SIZE / 16);
+        run("undo-log-disk", genesis, blocks, disk, true);
+        System.out.printf("%-20s %8.1f%% cache hits %8.3f ms/flush %8.1f MB on disk%n", "", 100 * disk.getCacheHitRate(),
+                disk.getAverageFlushNanos() / 1e6, disk.getFileBytes() / (1024.0 * 1024.0));
+        disk.close();
+    }
+
+    private static void run(String name, Block genesis, ArrayList<Block> blocks, UTXOStore store,
+            boolean undoLog) {
+        // every run verifies the signatures itself, not just the first
+        SignatureCache.shared().clear();
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        BlockChain chain = new BlockChain(genesis, store, undoLog);
+        for (Block b : blocks)
+            if (!chain.addBlock(b))
+                throw new IllegalStateException(name + ": block rejected");
+        long elapsed = System.nanoTime() - start;
+        long retained = usedHeap() - heapBefore;
+        System.out.printf("%-20s %8.1f ms total %8.3f ms/block %8.1f MB retained%n", name,
+                elapsed / 1e6, elapsed / 1e6 / blocks.size(), retained / (1024.0 * 1024.0));
+        // keep the chain reachable until it has been measured
+        if (chain.getMaxHeightBlock() == null)
+            System.out.println();
+    }
+
+    static ArrayList<Block> generateChain(Block genesis, KeyPair[] keys, int numBlocks,
+            int txsPerBlock) throws Exception {
+        Random random = new Random(42);
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        ArrayList<Coin> coins = new ArrayList<Coin>();
+
+        // fan the genesis coinbase out so there is something to spend
+        Transaction.Builder fanBuilder = new Transaction.Builder();
+        fanBuilder.addInput(genesis.getCoinbase().getHash(), 0);
+        int fanOut = txsPerBlock * 4;
+        for (int i = 0; i < fanOut; i++)
+            fanBuilder.addOutput(Block.COINBASE / fanOut, keys[i % keys.length].getPublic());
+        fanBuilder.addSignature(sign(keys[0].getPrivate(), fanBuilder.getRawDataToSign(0)), 0);
+        Transaction fan = fanBuilder.build();
+        for (int i = 0; i < fanOut; i++)
+            coins.add(new Coin(fan, i, keys[i % keys.length]));
+
+        byte[] prevHash = genesis.getHash();
+        for (int b = 0; b < numBlocks; b++) {
+            Block block = new Block(prevHash, keys[random.nextInt(keys.length)].getPublic());
+            if (b == 0)
+                block.addTransaction(fan);
+            for (int t = 0; t < txsPerBlock && coins.size() > 0; t++) {
+                Coin coin = coins.remove(random.nextInt(coins.size()));
+                double value = coin.tx.getOutput(coin.index).value / 2;
+                KeyPair a = keys[random.nextInt(keys.length)];
+                KeyPair c = keys[random.nextInt(keys.length)];
+                Transaction.Builder builder = new Transaction.Builder()
+                        .addInput(coin.tx.getHash(), coin.index)
+                        .addOutput(value, a.getPublic())
+                        .addOutput(value, c.getPublic());
+                builder.addSignature(sign(coin.owner.getPrivate(), builder.getRawDataToSign(0)), 0);
+                Transaction tx = builder.build();
+                block.addTransaction(tx);
+                coins.add(new Coin(tx, 0, a));
+                coins.add(new Coin(tx, 1, c));
+            }
+            block.finalize();
+            // an empty sibling that never becomes the tip, validated against the parent's state
+            if (b % 10 == 9) {
+                Block side = new Block(prevHash, keys[random.nextInt(keys.length)].getPublic());
+                side.finalize();
+                blocks.add(block);
+                blocks.add(side);
+            } else {
+                blocks.add(block);
+            }
+            prevHash = block.getHash();
+        }
+        return blocks;
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] message) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(key);
+        sig.update(message);
+        return sig.sign();
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+
+/**
+ * Backing storage for a {@link UTXOPool}. Implementations decide how the UTXO to
+ * transaction output mapping is kept and how expensive copying a pool is.
+ */
+public interface UTXOStore {
+
+    /** @return the output for {@code utxo}, or null if it is not in the store */
+    Transaction.Output get(UTXO utxo);
+
+    /** Maps {@code utxo} to {@code txOut}, replacing any previous mapping */
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes {@code utxo} from the store, if present */
+    void remove(UTXO utxo);
+
+    /**
+     * Same as {@link #remove}, for callers that need what was removed. The default looks the
+     * output up first; stores that can remove and return it in one step override it.
+     *
+     * @return the output {@code utxo} was mapped to, or null if it was not in the store
+     */
+    default Transaction.Output getAndRemove(UTXO utxo) {
+        Transaction.Output txOut = get(utxo);
+        if (txOut != null)
+            remove(utxo);
+        return txOut;
+    }
+
+    /** @return true if {@code utxo} is in the store */
+    boolean containsKey(UTXO utxo);
+
+    /** @return the number of UTXOs in the store */
+    int size();
+
+    /** @return an independent store with the same contents; later changes to either don't affect the other */
+    UTXOStore copy();
+
+    /** Calls {@code action} once for every (UTXO, output) pair in the store */
+    void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action);
+
+    /**
+     * @return a spliterator over the store's (UTXO, output) pairs, for streams. The default
+     *         collects them into a list first; stores override it to split their own structure.
+     *         The store must not be changed while it is in use, unless the store says otherwise.
+     */
+    default Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        ArrayList<Map.Entry<UTXO, Transaction.Output>> entries = new ArrayList<Map.Entry<UTXO, Transaction.Output>>(size());
+        forEach((ut, txOut) -> entries.add(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(ut, txOut)));
+        return entries.spliterator();
+    }
+
+    /** Writes out changes that are still only in memory, for stores that buffer them */
+    default void flush() {
+    }
+
+    /**
+     * Same as {@link #flush()}, recording {@code label} as the name of the state written out,
+     * for stores that keep it across a restart (see {@link #getLabel()})
+     */
+    default void flush(byte[] label) {
+        flush();
+    }
+
+    /**
+     * @return the label of the last state the store wrote out, which a store reopened over its
+     *         storage comes back holding; null if the store doesn't keep one or none was written
+     */
+    default byte[] getLabel() {
+        return null;
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * UTXO state for a tree of blocks kept as one live {@link UTXOPool} plus a {@link UTXODelta} per
+ * block, instead of a full pool per block. Memory is proportional to the size of the blocks
+ * rather than to the UTXO set.
+ *
+ * The live pool sits at one block at a time. Moving it to another block undoes deltas back to
+ * the common ancestor and then replays the deltas down the other branch.
+ */
+public class UndoLogUTXOState {
+
+    private class Node {
+        Hash parent;
+        UTXODelta delta;
+        int height;
+
+        private Node(Hash parent, UTXODelta delta, int height) {
+            this.parent = parent;
+            this.delta = delta;
+            this.height = height;
+        }
+    }
+
+    private HashMap<Hash, Node> nodes;
+    private UTXOPool live;
+    private Hash liveHash;
+
+    /** {@code rootPool} is the state after block {@code rootHash}, which has no delta of its own */
+    public UndoLogUTXOState(Hash rootHash, UTXOPool rootPool) {
+        this.nodes = new HashMap<Hash, Node>();
+        this.nodes.put(rootHash, new Node(null, null, 0));
+        this.live = rootPool;
+        this.liveHash = rootHash;
+    }
+
+    /**
+     * Adds block {@code hash} on top of {@code parent}. {@code pool} must be the state after the
+     * block, i.e. the parent's state with {@code delta} applied; it becomes the live pool.
+     */
+    public void addBlock(Hash hash, Hash parent, UTXODelta delta, UTXOPool pool) {
+        Node p = this.nodes.get(parent);
+        this.nodes.put(hash, new Node(parent, delta, p.height + 1));
+        this.live = pool;
+        this.liveHash = hash;
+    }
+
+    /**
+     * Forgets block {@code hash}. The live pool can no longer be moved across it afterwards, so
+     * only blocks that no retained branch needs to pass through should be removed.
+     */
+    public void removeBlock(Hash hash) {
+        this.nodes.remove(hash);
+    }
+
+    public boolean contains(Hash hash) {
+        return this.nodes.containsKey(hash);
+    }
+
+    /** @return the number of blocks whose deltas are kept */
+    public int size() {
+        return this.nodes.size();
+    }
+
+    /**
+     * @return the pool holding the state after block {@code hash}. This moves the live pool, so
+     *         the result is only valid until the next call; it should not be modified directly.
+     */
+    public UTXOPool poolAt(Hash hash) {
+        this.moveTo(hash);
+        return this.live;
+    }
+
+    // the oldest retained block on its branch, which can't be undone past
+    private boolean isBottom(Node n) {
+        return n.parent == null || !this.nodes.containsKey(n.parent);
+    }
+
+    /** Moves the live pool to the state after block {@code hash} */
+    public void moveTo(Hash hash) {
+        if (hash.equals(this.liveHash))
+            return;
+        Hash from = this.liveHash;
+        Hash to = hash;
+        ArrayList<Node> unwind = new ArrayList<Node>();
+        ArrayList<Node> replay = new ArrayList<Node>();
+        // walk both sides up to the common ancestor before touching the pool
+        while (!from.equals(to)) {
+            Node f = this.nodes.get(from);
+            Node t = this.nodes.get(to);
+            if (f == null || t == null || (isBottom(f) && isBottom(t)))
+                throw new IllegalStateException("block is no longer connected to the live state");
+            if (!isBottom(f) && f.height >= t.height) {
+                unwind.add(f);
+                from = f.parent;
+            } else {
+                replay.add(t);
+                to = t.parent;
+            }
+        }
+        for (Node n : unwind)
+            n.delta.undo(this.live);
+        for (int i = replay.size() - 1; i >= 0; i--)
+            replay.get(i).delta.apply(this.live);
+        this.liveHash = hash;
+    }
+}